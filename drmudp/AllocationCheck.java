@@ -0,0 +1,196 @@
+package drmudp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/* Checks that a NameServer answers LOOKUP requests and a Bank answers AUTH
+** requests without allocating, once they have warmed up. Both servers are
+** started in this process and sent binary requests one at a time from a
+** single client, and the bytes allocated by the threads that handle the
+** requests (the event loop of each server and the Bank's ledger writer) are
+** read from the ThreadMXBean before and after the measured requests.
+**
+** The check takes one optional argument, the number of requests measured,
+** 100000 if it isn't given, and is run as:
+**
+**   java drmudp.AllocationCheck [requests]
+**
+** It prints the bytes allocated per request by each thread and exits with
+** status 1 if any thread allocated.
+*/
+class AllocationCheck {
+  private static final int WARM_UP = 50000; //requests sent before measuring
+
+  private static com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private static long nextRequestId = 1; //ID of the next request sent
+
+  /* Run the check.
+  **
+  ** @param args the number of requests to measure
+  */
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    boolean allocated = false;
+
+    int nameServerPort = free_port();
+    Thread nameServer = start("NameServer check", () -> new NameServer(
+        new String[] {Integer.toString(nameServerPort)}));
+    DatagramChannel client = DatagramChannel.open();
+    client.configureBlocking(false);
+    client.connect(new InetSocketAddress(ComsFormat.nameserver_ip,
+        nameServerPort));
+    Message register = new Message(ComsFormat.registration)
+        .add(ComsFormat.store_hostname).add(Integer.toString(free_port()))
+        .add(ComsFormat.store_ip);
+    send(client, register);
+
+    Message lookup = new Message(ComsFormat.lookup)
+        .add(ComsFormat.store_hostname);
+    warm_up(client, lookup);
+    send(client, register); //renew the lease so it lasts while measuring
+    allocated |= measure(ComsFormat.lookup, client, lookup, requests,
+        nameServer);
+
+    Path directory = Files.createTempDirectory(Paths.get(""), "ledger");
+    try {
+      int bankPort = free_port();
+      Thread bank = start("Bank check", () -> new Bank(new String[] {
+          Integer.toString(bankPort), Integer.toString(nameServerPort),
+          directory.resolve(ComsFormat.ledgerFile).toString()}));
+      client.disconnect();
+      client.connect(new InetSocketAddress(ComsFormat.bank_ip, bankPort));
+      //The Bank is ready once it has answered a request
+      Message authorise = new Message(ComsFormat.authorise).add(2L)
+          .add(10.5f).add(1234567812345678L);
+      warm_up(client, authorise);
+      allocated |= measure(ComsFormat.authorise, client, authorise,
+          requests, bank, find_thread("Ledger writer"));
+    } finally {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file ->
+            file.toFile().delete());
+      }
+    }
+    System.exit(allocated ? 1 : 0);
+  }
+
+  /* Send a request enough times for the code that handles it to be compiled.
+  **
+  ** @param client the channel connected to the server
+  ** @param message the request to send
+  */
+  private static void warm_up(DatagramChannel client, Message message)
+      throws IOException {
+    for (int i = 0; i < WARM_UP; i++) {
+      send(client, message);
+    }
+  }
+
+  /* Send a request repeatedly, measuring the bytes allocated by the given
+  ** threads, and print the bytes per request.
+  **
+  ** @param name the name of the request
+  ** @param client the channel connected to the server
+  ** @param message the request to send
+  ** @param requests the number of requests to measure
+  ** @param measured the threads to measure
+  ** @return true if any of the threads allocated
+  */
+  private static boolean measure(String name, DatagramChannel client,
+      Message message, int requests, Thread... measured) throws IOException {
+    long[] before = new long[measured.length];
+    for (int i = 0; i < measured.length; i++) {
+      before[i] = threads.getThreadAllocatedBytes(measured[i].getId());
+    }
+    for (int i = 0; i < requests; i++) {
+      send(client, message);
+    }
+    boolean allocated = false;
+    for (int i = 0; i < measured.length; i++) {
+      long bytes = threads.getThreadAllocatedBytes(measured[i].getId())
+          - before[i];
+      System.out.printf("%s: %.2f bytes per request allocated by %s%n",
+          name, (double) bytes / requests, measured[i].getName());
+      allocated |= bytes > 0;
+    }
+    return allocated;
+  }
+
+  /* Send a request with a new request ID and wait for the reply. The request
+  ** is sent again if no reply arrives within ComsFormat.receiveTimeout, as it
+  ** is while the server is starting.
+  **
+  ** @param client the channel connected to the server
+  ** @param message the request to send
+  */
+  private static void send(DatagramChannel client, Message message)
+      throws IOException {
+    ByteBuffer request = message.encode_binary(nextRequestId++);
+    ByteBuffer reply = ByteBuffer.allocate(ComsFormat.mtu);
+    while (true) {
+      client.write(request.duplicate());
+      long sent = System.currentTimeMillis();
+      try {
+        while (client.read(reply) == 0) {
+          if (System.currentTimeMillis() - sent 
+              > ComsFormat.receiveTimeout) {
+            break;
+          }
+        }
+      } catch (PortUnreachableException e) {
+        //Not listening yet
+      }
+      if (reply.position() > 0) {
+        return;
+      }
+    }
+  }
+
+  /* Start a server on a thread of its own, which becomes its event loop.
+  **
+  ** @param name the name of the thread
+  ** @param server the action that creates and runs the server
+  ** @return the thread
+  */
+  private static Thread start(String name, Runnable server) {
+    Thread thread = new Thread(server, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /* Find a running thread by its name.
+  **
+  ** @param name the name of the thread
+  ** @return the thread
+  */
+  private static Thread find_thread(String name) throws IOException {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name)) {
+        return thread;
+      }
+    }
+    throw new IOException("No thread named " + name);
+  }
+
+  /* Return a port that is free to listen on.
+  **
+  ** @return the port
+  */
+  private static int free_port() throws IOException {
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      channel.bind(new InetSocketAddress(0));
+      return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+  }
+}
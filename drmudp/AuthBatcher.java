@@ -0,0 +1,166 @@
+package drmudp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/* Sends the Store's purchase authorisations to the Bank in batches, so that
+** under load one datagram and one reply carry many purchases rather than
+** one each.
+**
+** An authorisation waits until ComsFormat.authBatch of them are waiting or
+** ComsFormat.authBatchDelay ms have passed since the first of them arrived,
+** whichever is sooner, and then they are all sent in one batch request
+** holding the item-ID, price and card of each purchase in turn. The Bank
+** replies with the result of each purchase on its own line, in the same
+** order, and each result completes the future of its purchase. A batch of
+** one is sent as an ordinary authorisation request. If the batch gets no
+** reply, or a reply that doesn't hold a result for every purchase, every
+** purchase in it fails.
+**
+** The number of batches and authorisations sent is counted, and logged with
+** each batch when ComsFormat.verbose is set, so the purchases carried by each
+** datagram can be seen.
+*/
+class AuthBatcher {
+  //Timer shared by all batchers used to send batches that don't fill up
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AuthBatcher timer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private ServerMap servers; //map used to find the Bank
+  private ArrayList<Authorisation> waiting; //authorisations not yet sent
+  private long batches = 0; //number of batches sent
+  private long authorisations = 0; //number of authorisations sent
+
+  /* Create a new batcher with no waiting authorisations.
+  **
+  ** @param servers the server map used to find the Bank
+  */
+  public AuthBatcher(ServerMap servers) {
+    this.servers = servers;
+    waiting = new ArrayList<Authorisation>();
+  }
+
+  /* Ask the Bank to authorise a purchase.
+  **
+  ** @param itemId the ID of the item being bought
+  ** @param price the price of the item
+  ** @param creditCard the card the item is paid with
+  ** @return a future completed with the Bank's result for the purchase
+  */
+  public CompletableFuture<String> authorise(long itemId, float price,
+      long creditCard) {
+    Authorisation authorisation = new Authorisation(itemId, price,
+        creditCard);
+    ArrayList<Authorisation> full = null;
+    synchronized (this) {
+      waiting.add(authorisation);
+      if (waiting.size() >= ComsFormat.authBatch) {
+        full = take_batch();
+      } else if (waiting.size() == 1) {
+        ArrayList<Authorisation> first = waiting;
+        timer.schedule(() -> flush(first), ComsFormat.authBatchDelay,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return authorisation.result;
+  }
+
+  /* Send a batch when its delay has passed, unless it has already been sent
+  ** because it filled up.
+  **
+  ** @param batch the batch the delay was started for
+  */
+  private void flush(ArrayList<Authorisation> batch) {
+    synchronized (this) {
+      if (batch != waiting) {
+        return;
+      }
+      take_batch();
+    }
+    send(batch);
+  }
+
+  /* Take the waiting authorisations to send as a batch.
+  **
+  ** @return the batch
+  */
+  private synchronized ArrayList<Authorisation> take_batch() {
+    ArrayList<Authorisation> batch = waiting;
+    waiting = new ArrayList<Authorisation>();
+    batches++;
+    authorisations += batch.size();
+    return batch;
+  }
+
+  /* Send a batch to the Bank and complete the future of each authorisation
+  ** in it when the reply arrives.
+  **
+  ** @param batch the authorisations to send
+  */
+  private void send(ArrayList<Authorisation> batch) {
+    Message message = new Message(batch.size() == 1 ? ComsFormat.authorise
+        : ComsFormat.authoriseBatch);
+    for (Authorisation authorisation : batch) {
+      message.add(authorisation.itemId).add(authorisation.price)
+          .add(authorisation.creditCard);
+    }
+
+    if (ComsFormat.verbose) {
+      System.out.println("Message to bank: " + message);
+      System.out.println(this);
+    }
+    servers.get_server(ComsFormat.bank_hostname).send_async(message,
+        ComsFormat.retry, ComsFormat.sendTimeout, ComsFormat.receiveTimeout)
+        .whenComplete((reply, e) -> {
+          String[] results = null;
+          if (e == null) {
+            results = batch.size() == 1 ? new String[] {reply}
+                : reply.split(ComsFormat.newline);
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            if (results == null || results.length != batch.size()) {
+              batch.get(i).result.completeExceptionally(e != null ? e
+                  : new IOException("Bad batch reply: " + reply));
+            } else {
+              batch.get(i).result.complete(results[i].trim());
+            }
+          }
+        });
+  }
+
+  /* Return the batch counts.
+  **
+  ** @return the counts as text
+  */
+  public synchronized String toString() {
+    return "Bank batches: " + batches + " batches, " + authorisations
+        + " authorisations";
+  }
+
+  /* A purchase waiting to be authorised by the Bank.
+  */
+  private static class Authorisation {
+    private final long itemId;
+    private final float price;
+    private final long creditCard;
+    private final CompletableFuture<String> result;
+
+    private Authorisation(long itemId, float price, long creditCard) {
+      this.itemId = itemId;
+      this.price = price;
+      this.creditCard = creditCard;
+      result = new CompletableFuture<String>();
+    }
+  }
+}
@@ -1,14 +1,18 @@
 package drmudp;
 
 
-import java.net.*;
 import java.io.*;
+import java.nio.file.Paths;
 
 /* The Bank is used to check if the financial credentials are valid or invalid
 **
-** The Bank takes two command line arguments. The first is the port the 
-** server is to listen to for incoming connections. The second is the nameServer
-** port which is used to register the Bank's ip/port/hostname details.
+** The Bank takes two or three command line arguments. The first is the port 
+** the server is to listen to for incoming connections. The second is the 
+** nameServer port which is used to register the Bank's ip/port/hostname 
+** details, or a comma separated list of ports if there are several nameServer
+** replicas. The optional third is the path to the Bank's ledger file, 
+** ComsFormat.ledgerFile if it isn't given. Every check is recorded in the 
+** ledger before it is replied to (see Ledger).
 */
 public class Bank {
   //Exit Status codes
@@ -16,23 +20,21 @@ public class Bank {
   private static final int LISTEN_FAILURE = 2;
   private static final int SOCKET_FAILURE = 3;
   private static final int REGISTRATION_FAILURE = 4;
+  private static final int LEDGER_FAILURE = 5;
   
   //Instance variables
-  private DatagramSocket serverSocket = null; //socket to receive datagrams 
+  private EventLoop loop = null; //loop receiving and dispatching messages
   private ServerMap servers = null; 
+  private Ledger ledger = null; //record of every check replied to
   
-  InetAddress clientIPAddress;
-  int clientPort;
   int bankPort;
   
-  private String message; //message read from remote client process
-  
   
   /* Creates a new Bank Object using the command line arguments.
   **
   ** @param args The arguments supplied on the command line. This should be a 
-  ** a port for the for the server to listen for messages and the NameServer
-  ** port.
+  ** a port for the for the server to listen for messages, the NameServer
+  ** port and optionally the ledger file path.
   */
   public static void main (String[] args) {
     new Bank(args);
@@ -43,13 +45,14 @@ public class Bank {
   ** messages. 
   **
   ** @param args Command line arguments supplied to constructor and should be a
-  ** port for the Bank to listen to and the NameServer port.
+  ** port for the Bank to listen to, the NameServer port and optionally the 
+  ** path to the ledger file.
   */
   public Bank(String[] args) {
     int bankPort;
-    int nameServerPort;
+    int[] nameServerPorts;
     
-    if (args.length != 2) {
+    if (args.length != 2 && args.length != 3) {
       exit(BAD_ARGS);  
     }
     
@@ -57,117 +60,170 @@ public class Bank {
       exit(LISTEN_FAILURE);  
     }
     
-    if ((nameServerPort = check_valid_port(args[1])) < 0) {
+    if ((nameServerPorts = ServerMap.parse_ports(args[1])) == null) {
       exit(BAD_ARGS);  
     }
     
-    listen(bankPort);
+    String ledgerFile = args.length == 3 ? args[2] : ComsFormat.ledgerFile;
+    try {
+      ledger = new Ledger(Paths.get(new File("").getAbsolutePath(), 
+          ledgerFile), ComsFormat.ledgerBatch, 
+          (entry, e) -> committed(entry, e));
+    } catch (IOException e) {
+      System.err.print("Could not open ledger \"" + ledgerFile + "\": " + e 
+          + "\n");
+      exit(LEDGER_FAILURE);
+    }
+    
+    try {
+      loop = new EventLoop(bankPort);
+    } catch (IOException e) {
+      exit(SOCKET_FAILURE);
+    }
     System.err.print("Bank waiting for incoming messages\n");
     
     try {
-      servers = new ServerMap(nameServerPort);
+      servers = new ServerMap(nameServerPorts);
       servers.register(ComsFormat.bank_hostname, bankPort, ComsFormat.bank_ip);
     } catch ( RegistrationException e){
       exit(REGISTRATION_FAILURE);
     }
     
-   
-    //Gets a datagram, processes it, then gets next datagram and repeats
-    while (true) {
-      try {
-        get_message();
-      } catch (IOException e) {
-        continue;
-      }
-      process_message();
-    }
-  }
-  
-  /*  Create a new datagram socket from which to receive datagrams from clients.
-  ** @port the port to listen on
-  */      
-  private void listen(int port) {
-    try {
-      serverSocket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      exit(SOCKET_FAILURE);
-    }
+    //Older Bank messages have no opcode so they go to the default handler
+    loop.add_handler(ComsFormat.authorise, request -> process_message(request));
+    loop.add_handler(ComsFormat.authoriseBatch, 
+        request -> process_batch(request));
+    loop.set_default_handler(request -> process_message(request));
+    loop.run();
   }
-  
-  /* Read in a datagram from a client. Extract IP, Port and message.
-  */
-  private void get_message() throws IOException {
-    byte[] receiveData = new byte[1024];
-    int dataLength = receiveData.length;
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, dataLength); 
-    
-    
-    serverSocket.receive(receivePacket);         
-    
-    String line = new String(receivePacket.getData());
-    line = line.trim();
-    System.out.println("Message from Client: " + line);
-    clientIPAddress = receivePacket.getAddress();
-    clientPort = receivePacket.getPort();
-    
-    message = line;
-
-  }  
-
 
   /* Process message from remote client process. If the message is a valid 
   ** financial credential check the bank checks to see if the credentials are 
-  ** valid. If they are it replies "1" and prints out "OK" if they are not the 
-  ** reply is "0" and "NOT OK" is printed out. If the message is not a valid 
-  ** financial credential check the bank does not reply.
+  ** valid. If they are it replies "1" and if they are not the reply is "0", 
+  ** printing "OK" or "NOT OK" when ComsFormat.verbose is set. If the message 
+  ** is not a valid financial credential check the bank does not reply.
+  **
+  ** @param request the message received and the address to reply to
   **/
-  private void process_message () {
-    String[] messageParts = message.split(" ");
-    String result;
+  private void process_message (Request request) {
     long itemId;
+    float price;
+    long card;
     
-    if (messageParts.length != 3) {
+    if (request.field_count() != 3) {
       return;
     }
     
     try {
-      itemId = Long.parseLong(messageParts[0]);
+      itemId = request.get_long(0);
+      price = request.get_float(1);
+      card = request.get_long(2);
     } catch (NumberFormatException e) {
       return;
     }
-	
-    System.out.println(itemId);
-	
-    if ((itemId % 2) == 0){
-      result = "1";
-      System.out.println("OK");
-    } else {
-      result = "0";
-      System.out.println("NOT OK");
-    }
     
-    reply(result);
+    if (reply_recorded(request)) {
+      return;
+    }
+    Ledger.Entry entry = ledger.new_entry(request.get_client(), 
+        request.get_requestId(), request.is_binary());
+    entry.add(itemId, price, card, authorise(itemId));
+    ledger.commit(entry);
   }
   
-  /* Send a datagram to the client as a reply.
-   * 
-  ** @param reply the message to reply with
+  /* Process a batch of financial credential checks. The message holds the
+  ** item-ID, price and card of each purchase in turn, and the reply holds
+  ** the result of each check on its own line in the same order. If any check
+  ** in the batch is not valid the bank does not reply.
+  **
+  ** @param request the message received and the address to reply to
   */
-  private void reply(String reply) {
-    byte[] sendData = new byte[1024];
-    sendData = reply.getBytes();
-        
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, 
-        clientIPAddress, clientPort);
+  private void process_batch (Request request) {
+    int count = request.field_count() / 3;
+    
+    if (count == 0 || request.field_count() % 3 != 0) {
+      return;
+    }
     
+    //Every check is parsed once to validate it and again to record it
     try {
-      serverSocket.send(sendPacket);
-      System.out.println("Message to client: " + reply + ComsFormat.newline);
-    } catch (IOException e) {
-      System.err.println("Unable to send reply");
+      for (int i = 0; i < count; i++) {
+        request.get_long(i * 3);
+        request.get_float(i * 3 + 1);
+        request.get_long(i * 3 + 2);
+      }
+    } catch (NumberFormatException e) {
       return;
     }
     
+    if (reply_recorded(request)) {
+      return;
+    }
+    Ledger.Entry entry = ledger.new_entry(request.get_client(), 
+        request.get_requestId(), request.is_binary());
+    for (int i = 0; i < count; i++) {
+      long itemId = request.get_long(i * 3);
+      entry.add(itemId, request.get_float(i * 3 + 1), 
+          request.get_long(i * 3 + 2), authorise(itemId));
+    }
+    ledger.commit(entry);
+  }
+  
+  /* Reply to a request already in the ledger with the reply recorded for it,
+  ** so a request retransmitted after the Bank restarts isn't checked and 
+  ** recorded again.
+  **
+  ** @param request the request to reply to
+  ** @return true if the request was in the ledger and has been replied to
+  */
+  private boolean reply_recorded(Request request) {
+    if (request.get_requestId() < 0) {
+      return false;
+    }
+    String recorded = ledger.find(request.get_client(), 
+        request.get_requestId());
+    if (recorded == null) {
+      return false;
+    }
+    if (ComsFormat.verbose) {
+      System.out.println("Request already in ledger, resending reply");
+    }
+    request.reply(recorded);
+    return true;
+  }
+  
+  /* Reply to a request once its record in the ledger is durable. If the 
+  ** ledger can't be written the Bank exits, as it can no longer keep a 
+  ** record of what it has approved.
+  **
+  ** @param entry the request and the result of each purchase in it
+  ** @param failure the reason the record couldn't be written, null if it is
+  ** durable
+  */
+  private void committed(Ledger.Entry entry, IOException failure) {
+    if (failure != null) {
+      System.err.print("Ledger write failed: " + failure + "\n");
+      exit(LEDGER_FAILURE);
+    }
+    loop.reply(entry.get_client(), entry.get_requestId(), entry.is_binary(),
+        entry.reply());
+  }
+  
+  /* Check the financial credentials of one purchase.
+  **
+  ** @param itemId the ID of the item being bought
+  ** @return true if the purchase is approved, false otherwise
+  */
+  private boolean authorise(long itemId) {
+    if (ComsFormat.verbose) {
+      System.out.println(itemId);
+    }
+	
+    boolean approved = (itemId % 2) == 0;
+    if (ComsFormat.verbose) {
+      System.out.println(approved ? "OK" : "NOT OK");
+    }
+    return approved;
   }
   
   /* Checks that the supplied port is a number within the valid port range 
@@ -204,6 +260,8 @@ public class Bank {
       case REGISTRATION_FAILURE: 
         System.err.print("Registration with NameServer failed\n");
         System.exit(REGISTRATION_FAILURE);
+      case LEDGER_FAILURE:
+        System.exit(LEDGER_FAILURE);
       case LISTEN_FAILURE:
         System.err.print("Bank unable to listen on given port\n");
       case SOCKET_FAILURE:
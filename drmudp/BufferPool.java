@@ -0,0 +1,52 @@
+package drmudp;
+
+import java.nio.ByteBuffer;
+
+/* A pool of direct buffers of a fixed size, used to build datagrams to send
+** without allocating a new buffer for each one. Buffers are taken from the
+** pool with acquire and must be given back with release once sent. If the
+** pool is empty a new buffer is allocated, and buffers given back to a full
+** pool are dropped.
+*/
+class BufferPool {
+  private int bufferSize; //size of each buffer in bytes
+  private ByteBuffer[] free; //buffers in the pool
+  private int count = 0; //number of buffers in the pool
+
+  /* Create a new pool holding the given number of buffers.
+  **
+  ** @param buffers the number of buffers to hold
+  ** @param bufferSize the size of each buffer in bytes
+  */
+  public BufferPool(int buffers, int bufferSize) {
+    this.bufferSize = bufferSize;
+    free = new ByteBuffer[buffers];
+    for (int i = 0; i < buffers; i++) {
+      free[count++] = ByteBuffer.allocateDirect(bufferSize);
+    }
+  }
+
+  /* Take a cleared buffer from the pool.
+  **
+  ** @return the buffer
+  */
+  public synchronized ByteBuffer acquire() {
+    if (count == 0) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    ByteBuffer buffer = free[--count];
+    free[count] = null;
+    buffer.clear();
+    return buffer;
+  }
+
+  /* Give a buffer back to the pool.
+  **
+  ** @param buffer the buffer
+  */
+  public synchronized void release(ByteBuffer buffer) {
+    if (count < free.length) {
+      free[count++] = buffer;
+    }
+  }
+}
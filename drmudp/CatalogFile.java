@@ -0,0 +1,297 @@
+package drmudp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/* Helpers shared by the Store and Content servers for reading their catalog
+** files quickly. A text catalog is memory-mapped and cut into chunks at line
+** boundaries which are parsed in parallel, and the binary files built from a
+** catalog are written so they replace the old file in one step. Records held
+** off the heap are sorted in place without boxing. Files must be smaller than
+** 2GB.
+*/
+class CatalogFile {
+  //Binary file header: catalog size, catalog modification time, item count
+  public static final int HEADER_LENGTH = 20;
+
+  /* Map a whole file read only.
+  **
+  ** @param file the file to map
+  ** @return the mapped file
+  */
+  public static MappedByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /* Map a binary file built from a catalog, if it is up to date. The file
+  ** must start with a header holding the size and modification time of the
+  ** catalog and the number of items, and be at least the length those items
+  ** need. Anything the file holds after its items is checked by its reader.
+  **
+  ** @param file the binary file
+  ** @param size the size of the catalog
+  ** @param modified the modification time of the catalog
+  ** @param itemLength the number of bytes each item takes
+  ** @return the mapped file, null if it is missing or out of date
+  */
+  public static MappedByteBuffer map_built(Path file, long size,
+      long modified, int itemLength) throws IOException {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    MappedByteBuffer built = map(file);
+    if (built.limit() < HEADER_LENGTH || built.getLong(0) != size
+        || built.getLong(8) != modified || built.getInt(16) < 0 
+        || built.limit() 
+        < HEADER_LENGTH + (long) built.getInt(16) * itemLength) {
+      return null;
+    }
+    return built;
+  }
+
+  /* Write a file by writing a temporary file which then replaces it once it
+  ** is on disk, so a copy of the old file still mapped by a reader is left
+  ** intact and a crash leaves either the old file or the new one.
+  **
+  ** @param file the file to write
+  ** @param buffer the bytes to write
+  */
+  public static void write(Path file, ByteBuffer buffer) throws IOException {
+    write(file, channel -> {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    });
+  }
+
+  /* Write a file, as write does, with bytes produced as they are written so
+  ** the whole file is never held in memory.
+  **
+  ** @param file the file to write
+  ** @param output the action that writes the bytes of the file
+  */
+  public static void write(Path file, Output output) throws IOException {
+    Path temp = Paths.get(file.toString() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      output.write(channel);
+      channel.force(true);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /* Parse a mapped text catalog in parallel. The catalog is cut into chunks
+  ** of about ComsFormat.parseChunkSize bytes, each ending at the end of a
+  ** line, and each chunk is parsed on the common fork/join pool.
+  **
+  ** @param data the mapped catalog
+  ** @param parser the action that parses one chunk
+  ** @return the result of parsing each chunk, in file order
+  */
+  public static <T> List<T> parse(ByteBuffer data, Function<Chunk, T> parser) {
+    int chunks = Math.max(1, data.limit() / ComsFormat.parseChunkSize);
+    int[] bounds = new int[chunks + 1];
+    for (int i = 1; i < chunks; i++) {
+      int bound = Math.max(bounds[i - 1], i * ComsFormat.parseChunkSize);
+      while (bound < data.limit() && data.get(bound) != '\n') {
+        bound++;
+      }
+      bounds[i] = Math.min(bound + 1, data.limit());
+    }
+    bounds[chunks] = data.limit();
+
+    return IntStream.range(0, chunks).parallel()
+        .mapToObj(i -> parser.apply(new Chunk(data, i, bounds[i], 
+            bounds[i + 1])))
+        .collect(Collectors.toList());
+  }
+
+  /* Sort items held anywhere, such as in primitive arrays or a mapped file,
+  ** by their numbers, without allocating. The sort is a heap sort so it 
+  ** takes no extra space and has no bad cases, and is not stable: items that
+  ** must keep an order when their keys are equal should be compared on their
+  ** position as well.
+  **
+  ** @param count the number of items
+  ** @param compare compares the items with two numbers, as a Comparator does
+  ** @param swapper swaps the items with two numbers
+  */
+  public static void sort(int count, IntBinaryOperator compare, 
+      Swapper swapper) {
+    for (int i = count / 2 - 1; i >= 0; i--) {
+      sift_down(i, count, compare, swapper);
+    }
+    for (int end = count - 1; end > 0; end--) {
+      swapper.swap(0, end);
+      sift_down(0, end, compare, swapper);
+    }
+  }
+
+  /* Move an item down the heap until it is no smaller than its children.
+  **
+  ** @param root the number of the item
+  ** @param end the number of items in the heap
+  ** @param compare compares the items with two numbers
+  ** @param swapper swaps the items with two numbers
+  */
+  private static void sift_down(int root, int end, IntBinaryOperator compare,
+      Swapper swapper) {
+    while (true) {
+      int child = 2 * root + 1;
+      if (child >= end) {
+        return;
+      }
+      if (child + 1 < end && compare.applyAsInt(child, child + 1) < 0) {
+        child++;
+      }
+      if (compare.applyAsInt(root, child) >= 0) {
+        return;
+      }
+      swapper.swap(root, child);
+      root = child;
+    }
+  }
+
+  /* An action that writes the bytes of a file.
+  */
+  interface Output {
+
+    /* Write the bytes of the file.
+    **
+    ** @param channel the file, open for writing at its start
+    */
+    void write(FileChannel channel) throws IOException;
+  }
+
+  /* An action that swaps two items being sorted.
+  */
+  interface Swapper {
+
+    /* Swap two items.
+    **
+    ** @param i the number of the first item
+    ** @param j the number of the second item
+    */
+    void swap(int i, int j);
+  }
+
+  /* A range of whole lines of a mapped catalog.
+  */
+  static class Chunk {
+    private ByteBuffer data; //the mapped catalog
+    private int index; //number of the chunk in the catalog
+    private int position; //offset of the next line
+    private int end; //offset of the end of the chunk
+    private int lineStart; //offset of the start of the current line
+    private int lineEnd; //offset of the end of the current line
+
+    private Chunk(ByteBuffer data, int index, int start, int end) {
+      this.data = data;
+      this.index = index;
+      this.position = start;
+      this.end = end;
+    }
+
+    /* Return the number of the chunk, counting from the start of the
+    ** catalog.
+    **
+    ** @return the number of the chunk
+    */
+    public int get_index() {
+      return index;
+    }
+
+    /* Move to the next line that isn't blank, with the leading and trailing
+    ** whitespace left out.
+    **
+    ** @return true if there is another line, false at the end of the chunk
+    */
+    public boolean next_line() {
+      while (position < end) {
+        lineStart = position;
+        while (position < end && data.get(position) != '\n') {
+          position++;
+        }
+        lineEnd = position;
+        position++;
+        while (lineEnd > lineStart
+            && Character.isWhitespace(data.get(lineEnd - 1))) {
+          lineEnd--;
+        }
+        while (lineStart < lineEnd
+            && Character.isWhitespace(data.get(lineStart))) {
+          lineStart++;
+        }
+        if (lineStart < lineEnd) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /* Read the item-ID at the start of the current line and move the start
+    ** of the line past it and the spaces after it.
+    **
+    ** @return the item-ID
+    */
+    public long take_id() {
+      int idEnd = lineStart;
+      while (idEnd < lineEnd && data.get(idEnd) != ' ') {
+        idEnd++;
+      }
+      String id = ascii(lineStart, idEnd);
+      lineStart = idEnd;
+      while (lineStart < lineEnd && data.get(lineStart) == ' ') {
+        lineStart++;
+      }
+      return Long.parseLong(id);
+    }
+
+    /* Return the rest of the current line.
+    **
+    ** @return the rest of the line as text
+    */
+    public String rest() {
+      return ascii(lineStart, lineEnd);
+    }
+
+    /* Return the offset of the rest of the current line in the catalog.
+    **
+    ** @return the offset
+    */
+    public int rest_offset() {
+      return lineStart;
+    }
+
+    /* Return the length of the rest of the current line.
+    **
+    ** @return the length in bytes
+    */
+    public int rest_length() {
+      return lineEnd - lineStart;
+    }
+
+    private String ascii(int from, int to) {
+      byte[] bytes = new byte[to - from];
+      data.get(from, bytes);
+      return new String(bytes, StandardCharsets.US_ASCII);
+    }
+  }
+}
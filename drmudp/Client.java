@@ -7,7 +7,10 @@ import java.io.IOException;
 ** specified on the command line. The first command line argument is the request
 ** represented as a number (0 to list and > 0 to buy item number in list).
 ** The second argument is the name server port which is used to lookup the 
-** details of the store server.
+** details of the store server, or a comma separated list of ports if there are
+** several name server replicas. A list request may be followed by two more
+** arguments, the position in the list to start at and the number of items to 
+** list, to list one page of the items rather than all of them.
 **
 */
 public class Client {
@@ -48,27 +51,37 @@ public class Client {
   */
   public Client(String[] args) {
     
-    int nameServerPort = -1;
+    int[] nameServerPorts = null;
     int request = -1;
+    int offset = -1;
+    int count = -1;
     
-    if (args.length != 2) {
+    if (args.length != 2 && args.length != 4) {
       exit(BAD_ARGS); 
     }
     
     try {
       request = Integer.parseInt(args[0]);
+      if (args.length == 4) {
+        offset = Integer.parseInt(args[2]);
+        count = Integer.parseInt(args[3]);
+      }
     } catch (NumberFormatException e) {
       exit(BAD_ARGS);      
     }
         
-    if ((nameServerPort = check_valid_port(args[1])) < 0 || request < 0 ) {
+    if ((nameServerPorts = ServerMap.parse_ports(args[1])) == null 
+        || request < 0 ) {
+      exit(BAD_ARGS); 
+    }
+    if (args.length == 4 && (request != 0 || offset < 0 || count < 0)) {
       exit(BAD_ARGS); 
     }
     
 	//Register with name server though this is not necessary at this stage and
 	//place holder literal values are used.
     try {
-      servers = new ServerMap(nameServerPort);
+      servers = new ServerMap(nameServerPorts);
       servers.register("client", 6465, "localhost");
     } catch ( RegistrationException e) {
       exit(NAMESERVER_CONNECT_FAIL);
@@ -84,8 +97,11 @@ public class Client {
       exit(NAMESERVER_CONNECT_FAIL);
     } 
     
-    if (request == 0) {
-      System.out.println(get_list());
+    if (request == 0 && offset >= 0) {
+      System.out.println(get_list(new Message(ComsFormat.listRequest)
+          .add(offset).add(count), offset + 1));
+    } else if (request == 0) {
+      System.out.println(get_list(new Message(ComsFormat.listRequest), 1));
     } else {
       Item item = buy_item(request);
       if (item.get_itemContent().contains(ComsFormat.transaction_fail)) {
@@ -107,20 +123,21 @@ public class Client {
   */  
   private Item buy_item(int request) {
     String itemContent = "";
-    String list = get_list();
-    String[] items = list.split(ComsFormat.newline);
-    if (request > items.length) {
+    //Only the one item being bought is listed
+    String list = get_list(new Message(ComsFormat.listRequest)
+        .add(request - 1).add(1), request);
+    if (list.isEmpty()) {
       exit(NO_ITEM);
     }
-    String entry = items[request - 1];
+    String entry = list.split(ComsFormat.newline)[0];
     String[] itemFields = entry.split(" ");
     String itemNo = itemFields[0];
     String itemId = itemFields[1];
     String itemPrice = itemFields[2];
     Server newConnection = null;
 	
-    String buyRequest = ComsFormat.buyRequest + ComsFormat.separator 
-        +  CREDIT_CARD_NO + ComsFormat.separator + itemId;
+    Message buyRequest = new Message(ComsFormat.buyRequest).add(CREDIT_CARD_NO)
+        .add(Long.parseLong(itemId));
     
      
     newConnection = new Server(
@@ -143,19 +160,23 @@ public class Client {
     return item;
   }
 
-  /* Sends a request for the list of items able to be bought from the store.
-  ** If the request is successful the list is returned.
+  /* Sends a request for the list of items able to be bought from the store,
+  ** or a page of it. If the request is successful the list is returned with 
+  ** each item numbered by its position in the whole list.
   **
+  ** @param listRequest the list request to send
+  ** @param first the number of the first item in the reply
   ** @return the list of items able to be bought from the store
   */  
-  private String get_list() {
+  private String get_list(Message listRequest, int first) {
     String storeReply = "";
-    String list = "";
+    StringBuilder list = new StringBuilder();
     int count = 0;
+    int itemNo = first;
 	
     try {
       storeReply = servers.get_server(ComsFormat.store_hostname).send_message(
-          ComsFormat.listRequest, ComsFormat.clientRetry, 
+          listRequest, ComsFormat.clientRetry, 
           ComsFormat.clientSendTimeout, ComsFormat.clientReceiveTimeout);
     } catch (IOException e) {
       exit(STORE_CONNECT_FAIL);
@@ -167,13 +188,14 @@ public class Client {
     while (!storeReply.equals(ComsFormat.listEnd)) {
       if (storeReply.length() > 0  && !(storeReply.equals(ComsFormat.listStart) 
           || storeReply.equals(ComsFormat.listEnd))) {
-          list = list + count + ". " + storeReply + ComsFormat.newline;       
+          list.append(itemNo++).append(". ").append(storeReply)
+              .append(ComsFormat.newline);
       }
       count++;
       storeReply = lines[count];
     }   
 	
-    return list.trim();
+    return list.toString().trim();
   }
   
   /* Checks that the supplied port is a number within the valid port range 
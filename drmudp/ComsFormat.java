@@ -6,6 +6,8 @@ class ComsFormat {
   private static final String DEFAULT_IP = "localhost";
   
   public static final String separator = " ";
+  public static final String requestIdTag = "#";
+  public static final String portListSeparator = ",";
   public static final String newline = System.getProperty("line.separator");
   public static final String fileSep = System.getProperty("file.separator");
   public static final String registration = "REG";
@@ -13,14 +15,24 @@ class ComsFormat {
   public static final String lookup = "LOOKUP";
   public static final String lookupError = "Error: Process has not registered"
       + " with the Name Server";
+  public static final String multiLookup = "MLOOKUP";
+  public static final String sync = "SYNC";
+  public static final String notFound = "NOT_FOUND";
   public static final String listRequest = "LIST";
   public static final String buyRequest = "BUY";
+  public static final String listFrom = "FROM";
   public static final String listStart = "LIST_START";
   public static final String listEnd = "LIST_END";
   public static final String purchase_success = "1";
   public static final String purchase_fail = "0";
   public static final String transaction_fail = "\"transaction aborted\"";
   public static final String request_content = "REQ";
+  public static final String authorise = "AUTH";
+  public static final String authoriseBatch = "MAUTH";
+  public static final String reply = "REPLY";
+  public static final String fragment = "FRAG";
+  public static final String resendRequest = "RESEND";
+  public static final String ack = "ACK";
   public static final String store_hostname = "Store";
   public static final String bank_hostname = "Bank";
   public static final String content_hostname = "Content";
@@ -29,11 +41,44 @@ class ComsFormat {
   public static final String bank_ip = DEFAULT_IP;
   public static final String content_ip = DEFAULT_IP;
   public static final String store_ip = DEFAULT_IP;
+  public static final boolean binaryWire = true; //send requests as binary
+  public static final boolean verbose = false; //log every message sent
+  public static final int sendBuffers = 64; //pooled buffers to build replies
+  public static final int mtu = 1400; //largest datagram sent in bytes
+  public static final int fragmentHeader = 64; //bytes kept for fragment header
+  public static final int window = 64; //most fragments sent but not acked
+  public static final int ackInterval = 8; //fragments received per ACK sent
+  public static final int dupThreshold = 3; //later acks before a resend
   public static final int sendTimeout = 100;
   public static final int receiveTimeout = 500;
   public static final int retry = 3;
   public static final int clientSendTimeout = 100;
   public static final int clientReceiveTimeout = 1000;
   public static final int clientRetry = 5;
+  public static final int minRto = 50;
+  public static final int maxRto = 4000;
+  public static final double rtoJitter = 0.25;
+  public static final boolean speculativeContent = true; //fetch during AUTH
+  public static final int contentCacheSize = 1000; //items cached by Store
+  public static final int contentCacheTime = 60000; //time an item is cached
+  public static final int reloadDelay = 200; //quiet time before a reload
+  public static final int parseChunkSize = 1 << 20; //bytes parsed per task
+  public static final int storeWorkers = 16; //0 completes purchases inline
+  public static final int authBatch = 16; //most purchases in one Bank batch
+  public static final int authBatchDelay = 2; //longest wait to fill a batch
+  public static final String ledgerFile = "bank.ledger"; //Bank's default
+  public static final int ledgerBatch = 1024; //most requests per disk force
+  public static final int ledgerSegmentSize = 64 << 20; //bytes per segment
+  public static final int replyCacheSize = 10000;
+  public static final int replyCacheTime = 30000;
+  public static final int lookupTtl = 5000; //time a lookup is cached for
+  public static final int lookupNegativeTtl = 2000; //same for a failed lookup
+  public static final int lookupBatch = 16; //most hosts in one lookup
+  public static final int balancer = ServerMap.LEAST_OUTSTANDING;
+  public static final int hedgeDelay = 100; //wait before the next replica
+  public static final int syncInterval = 1000; //time between replica syncs
+  public static final int leaseTime = 10000; //time a registration lasts
+  public static final int heartbeatInterval = 3000; //time between renewals
+  public static final int leaseSweepInterval = 1000; //time between sweeps
   public static final double packetLossProb = 0.5;
 }
@@ -1,9 +1,15 @@
 package drmudp;
 
 
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.net.*;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.io.*;
 import java.util.*;
 
@@ -13,8 +19,10 @@ import java.util.*;
 ** The Content Server takes three command line arguments. The first is the 
 ** port the server is to listen to for incoming connections. The third is the 
 ** nameServer port which is used to register the Content Server's 
-** ip/port/hostname details. The second is the path to a file containing details
-** about the content.
+** ip/port/hostname details, or a comma separated list of ports if there are 
+** several nameServer replicas. The second is the path to a file containing 
+** details about the content. The content is reloaded whenever the file 
+** changes.
 ** 
 */
 public class Content {
@@ -24,16 +32,14 @@ public class Content {
   private static final int SOCKET_FAILURE = 3;
 
   //Instance variables  
-  private DatagramSocket serverSocket = null; //socket to receive datagrams 
+  private EventLoop loop = null; //loop receiving and dispatching messages
   private ServerMap servers = null; 
   
-  InetAddress clientIPAddress; 
-  int clientPort; 
   int contentPort; 
   
-  private String message; //message read from remote client process
-  
-  private StockContent stockContent; //The stored content info read from file
+  //The stored content info read from file, replaced when the file changes
+  private volatile StockContent stockContent;
+  private FileWatcher contentWatcher = null; //watcher that reloads content
 
   /* Creates a new Content Object using the command line arguments.
   **
@@ -56,7 +62,7 @@ public class Content {
   */
   public Content(String[] args) {
     int contentPort;
-    int nameServerPort;
+    int[] nameServerPorts;
     
     if (args.length != 3) {
       exit(BAD_ARGS);  
@@ -66,93 +72,70 @@ public class Content {
       exit(BAD_ARGS);  
     }
     
-    if ((nameServerPort = check_valid_port(args[2])) < 0) {
+    if ((nameServerPorts = ServerMap.parse_ports(args[2])) == null) {
       exit(BAD_ARGS);  
     }
     
     String currentDir = new File("").getAbsolutePath();
     String path = currentDir + ComsFormat.fileSep + args[1];
     
+    //Watched before it is loaded so a change made while loading isn't missed
+    try {
+      contentWatcher = new FileWatcher(Paths.get(path), 
+          file -> stockContent = new StockContent(file));
+    } catch (IOException e) {
+      System.err.print("Could not watch content file, it won't be "
+          + "reloaded\n");
+    }
+    
     try {
-      stockContent = new StockContent(Files.readAllLines(
-          Paths.get(path))); 
+      stockContent = new StockContent(Paths.get(path)); 
     } catch (IOException e) {
       System.out.println("Could not find \"" 
           + args[1] + "\" in directory: " + currentDir);
       exit(BAD_ARGS);
     }
+    if (contentWatcher != null) {
+      contentWatcher.start();
+    }
     
-    listen(contentPort);
+    try {
+      loop = new EventLoop(contentPort);
+    } catch (IOException e) {
+      exit(SOCKET_FAILURE);
+    }
     System.err.print("Content waiting for incoming connections\n");
     
     try {
-      servers = new ServerMap(nameServerPort);
+      servers = new ServerMap(nameServerPorts);
       servers.register(ComsFormat.content_hostname, contentPort
           , ComsFormat.content_ip);
     } catch ( RegistrationException e){
       exit(REGISTRATION_FAILURE);
     }
     	
-    //Gets a datagram, processes it, then gets next datagram and repeats
-    while (true) {
-      try {
-        get_message();
-      } catch (IOException e) {
-        continue;
-      }
-      process_message();
-    }
+    loop.add_handler(ComsFormat.request_content, 
+        request -> process_message(request));
+    loop.run();
   }
   
-  /*  Create a new datagram socket from which to receive datagrams from clients.
-  ** @port the port to listen on
-  */    
-  private void listen(int port) {
-    try {
-      serverSocket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      exit(SOCKET_FAILURE);
-    }
-  }
-  
-  
-  /* Read in a datagram from a client. Extract IP, Port and message.
-  */
-  private void get_message() throws IOException {
-    byte[] receiveData = new byte[1024];
-    int dataLength = receiveData.length;
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, dataLength); 
-    
-    serverSocket.receive(receivePacket);         
-    
-    String line = new String(receivePacket.getData());
-    line = line.trim();
-    System.out.println("Message from Client: " + line);
-    clientIPAddress = receivePacket.getAddress();
-    clientPort = receivePacket.getPort();
-    
-    message = line;
-
-  } 
-  
-  
   /* Process message from remote client process. If the message is a valid 
   ** content request the Content replies to the client with the appropriate 
   ** content otherwise the message is ignored. If there is no content available
   ** for given Item ID the message is also ignored.
+  **
+  ** @param request the message received and the address to reply to
   **/  
-  private void process_message () {
-    String[] messageParts = message.split(" ");  
+  private void process_message (Request request) {
     long itemId;
     String content;
 	
-    if (messageParts.length != 2 
-        || !(messageParts[0].equals(ComsFormat.request_content))) {
+    if (request.field_count() != 1) {
       return;
     }
     
     try {
-      itemId = Long.parseLong(messageParts[1]);
+      itemId = request.get_long(0);
     } catch (NumberFormatException e) {
       return;
     }
@@ -160,29 +143,8 @@ public class Content {
 	content = stockContent.get_content(itemId);
 	if (content != null) {
       System.out.println("Content retrieved: " + content);
-      reply(content);
-    }
-  }
-  
-  /* Send a datagram to the client as a reply.
-   * 
-  ** @param reply the message to reply with
-  */
-  private void reply(String reply) {
-    byte[] sendData = new byte[1024];
-    sendData = reply.getBytes();
-        
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, 
-        clientIPAddress, clientPort);
-    
-    try {
-      serverSocket.send(sendPacket);
-      System.out.println("Message to client: " + reply + ComsFormat.newline);
-    } catch (IOException e) {
-      System.err.println("Unable to send reply");
-      return;
+      request.reply(content);
     }
-    
   }
 
   /* Checks that the supplied port is a number within the valid port range 
@@ -229,38 +191,324 @@ public class Content {
 }
 
 /* A class used to store the content information read from the content file.
+** Each line of the content file is an item-ID followed by the item's content,
+** which is the rest of the line and may hold several words.
+**
+** The content is served from an index file kept beside the content file (the
+** content file's name with INDEX_SUFFIX added), which the server owns and 
+** memory-maps rather than reading onto the heap. The index holds a header, a
+** copy of the content file and then a record of each item-ID, the offset of
+** its content in the copy and the length of the content, sorted by item-ID.
+** The content file itself is never mapped, so an operator rewriting it in
+** place can't change or cut short the bytes being served. Once the index is
+** built, startup maps it without reading the content file. The index is 
+** rebuilt when it is missing or doesn't match the content file's size and 
+** modification time, and replaces the old index file in one step, so an 
+** index still mapped by an older StockContent is left intact.
+**
+** The index is built without growing the heap: the copy is parsed in 
+** parallel chunks straight into the mapped records, which are then sorted 
+** in place. The heap doesn't grow with the catalog. Content files must be 
+** smaller than 2GB.
+**
+** Items are looked up through an open-addressing hash table of item-IDs and
+** index record numbers, built with the index and written after its records.
+** It is mapped with the rest of the index, in parts of at most TABLE_PART 
+** slots so a table of any size can be mapped, so loading an index doesn't 
+** rebuild the table. Like the rest of the index it is off the Java heap and
+** outside the direct memory limit, so a large catalog neither grows the heap
+** nor lengthens garbage collection, and a reload only needs the page cache to
+** hold the old and new tables at once. A lookup is usually a single probe 
+** rather than a search of the index.
 */
 class StockContent {
-  //A map of the itemId to the content. Tree map is used to preserve ordering
-  private TreeMap<Long, String> contentMap;
+  public static final String INDEX_SUFFIX = ".idx";
+  
+  //Index header: content file size, content file modification time, number
+  //of items, length of the copy of the content file
+  private static final int HEADER_LENGTH = 28;
+  //Index record: item-ID, offset of the content, length of the content
+  private static final int RECORD_LENGTH = 20;
+  //Hash table slot: item-ID, index record number plus one (0 if empty)
+  private static final int SLOT_LENGTH = 12;
+  //Most hash table slots in one mapping, a power of two
+  private static final int TABLE_PART = 1 << 26;
   
-  /* The StockContent object is created and maps item-ID to content for each 
-  ** stock item.
+  private MappedByteBuffer data; //the mapped copy of the content file
+  private MappedByteBuffer index; //the mapped index records
+  private int count; //number of items in the index
+  private MappedByteBuffer[] table; //the mapped hash table, in parts
+  private int mask; //number of slots in the hash table less one
+  
+  /* The StockContent object is created from a content file, building the
+  ** index of the file if it doesn't have an up to date one.
   **
-  ** @param A list of strings with each containing the item-ID and content for a 
-  ** certain item.
+  ** @param file the content file
   */
-  public StockContent(List<String> content) {
-    contentMap = new TreeMap<Long, String>();
-    for (int i = 0; i < content.size(); i++) {
-      String contentParts[] = content.get(i).split(ComsFormat.separator);
-      long itemId = Long.parseLong(contentParts[0]);
-      String contentName = contentParts[1];
-      contentMap.put(itemId, contentName);
+  public StockContent(Path file) throws IOException {
+    Path indexFile = Paths.get(file.toString() + INDEX_SUFFIX);
+    long size = Files.size(file);
+    long modified = Files.getLastModifiedTime(file).toMillis();
+    
+    if (!map_index(indexFile, size, modified)) {
+      build_index(file, indexFile, size, modified);
+      if (!map_index(indexFile, size, modified)) {
+        throw new IOException("Could not build index of " + file);
+      }
     }
   }
   
+  /* Map the copy of the content file, the records and the hash table of an
+  ** index file, if it is up to date.
+  **
+  ** @param indexFile the index file
+  ** @param size the size of the content file
+  ** @param modified the modification time of the content file
+  ** @return true if the index was mapped, false if it is missing or out of
+  ** date
+  */
+  private boolean map_index(Path indexFile, long size, long modified) 
+      throws IOException {
+    if (!Files.exists(indexFile)) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(indexFile)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) {
+          return false;
+        }
+      }
+      int items = header.getInt(16);
+      long dataLength = header.getLong(20);
+      if (header.getLong(0) != size || header.getLong(8) != modified
+          || items < 0 || dataLength < 0) {
+        return false;
+      }
+      long tableStart = HEADER_LENGTH + dataLength 
+          + (long) items * RECORD_LENGTH;
+      int slots = table_slots(items);
+      if (channel.size() != tableStart + (long) slots * SLOT_LENGTH) {
+        return false;
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, 
+          dataLength);
+      index = channel.map(FileChannel.MapMode.READ_ONLY, 
+          HEADER_LENGTH + dataLength, (long) items * RECORD_LENGTH);
+      table = map_table(channel, FileChannel.MapMode.READ_ONLY, tableStart,
+          slots);
+      count = items;
+      mask = slots - 1;
+      return true;
+    }
+  }
+  
+  /* Return the number of slots in the hash table of an index. The table has
+  ** a power of two number of slots and is kept at most half full so probe
+  ** sequences are short.
+  **
+  ** @param items the number of items in the index
+  ** @return the number of slots
+  */
+  private static int table_slots(int items) {
+    return Integer.highestOneBit(Math.max(items, 1) * 2 - 1) << 1;
+  }
+  
+  /* Map the hash table of an index file in parts of at most TABLE_PART 
+  ** slots.
+  **
+  ** @param channel the index file
+  ** @param mode the mode to map the table in
+  ** @param start the offset of the table in the file
+  ** @param slots the number of slots in the table
+  ** @return the mapped parts of the table
+  */
+  private static MappedByteBuffer[] map_table(FileChannel channel, 
+      FileChannel.MapMode mode, long start, int slots) throws IOException {
+    int partSlots = Math.min(slots, TABLE_PART);
+    MappedByteBuffer[] parts = new MappedByteBuffer[slots / partSlots];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = channel.map(mode, start + (long) i * partSlots * SLOT_LENGTH,
+          (long) partSlots * SLOT_LENGTH);
+    }
+    return parts;
+  }
+  
+  /* Return the hash table slot an item-ID is first looked for in.
+  **
+  ** @param itemId the item-ID
+  ** @param mask the number of slots in the table less one
+  ** @return the slot
+  */
+  private static int hash(long itemId, int mask) {
+    long mixed = itemId * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32)) & mask;
+  }
+  
+  /* Return the offset of a hash table slot in its part of the table.
+  **
+  ** @param slot the slot
+  ** @return the offset in bytes
+  */
+  private static int slot_offset(int slot) {
+    return (slot & (TABLE_PART - 1)) * SLOT_LENGTH;
+  }
+  
+  /* Build the index of a content file and write it to the index file. The
+  ** content file is copied into a temporary index file through its channel,
+  ** and the copy is parsed in parallel chunks twice, once to count the items
+  ** and once to write their records, which are then sorted in place, and the
+  ** hash table of the records is written after them. The temporary file then
+  ** replaces the index file. If an item-ID appears more than once the last 
+  ** line is used.
+  **
+  ** @param file the content file
+  ** @param indexFile the index file
+  ** @param size the size of the content file
+  ** @param modified the modification time of the content file
+  */
+  private static void build_index(Path file, Path indexFile, long size, 
+      long modified) throws IOException {
+    Path temp = Paths.get(indexFile.toString() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel in = FileChannel.open(file)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      while (header.hasRemaining()) {
+        out.write(header, header.position());
+      }
+      long dataLength = 0;
+      long copied;
+      while ((copied = out.transferFrom(in, HEADER_LENGTH + dataLength, 
+          Integer.MAX_VALUE)) > 0) {
+        dataLength += copied;
+      }
+      if (dataLength >= Integer.MAX_VALUE) {
+        throw new IOException("Content file must be smaller than 2GB");
+      }
+      MappedByteBuffer copy = out.map(FileChannel.MapMode.READ_ONLY, 
+          HEADER_LENGTH, dataLength);
+      
+      List<Integer> counts = CatalogFile.parse(copy, chunk -> {
+        int lines = 0;
+        while (chunk.next_line()) {
+          lines++;
+        }
+        return lines;
+      });
+      int[] starts = new int[counts.size()];
+      long lines = 0;
+      for (int i = 0; i < starts.length; i++) {
+        starts[i] = (int) lines;
+        lines += counts.get(i);
+      }
+      if (lines * RECORD_LENGTH >= Integer.MAX_VALUE) {
+        throw new IOException("Content file has too many items");
+      }
+      int total = (int) lines;
+      MappedByteBuffer records = out.map(FileChannel.MapMode.READ_WRITE, 
+          HEADER_LENGTH + dataLength, (long) total * RECORD_LENGTH);
+      
+      CatalogFile.parse(copy, chunk -> {
+        int record = starts[chunk.get_index()] * RECORD_LENGTH;
+        while (chunk.next_line()) {
+          records.putLong(record, chunk.take_id());
+          records.putLong(record + 8, chunk.rest_offset());
+          records.putInt(record + 16, chunk.rest_length());
+          record += RECORD_LENGTH;
+        }
+        return null;
+      });
+      
+      //Later lines have later offsets, so ties on item-ID sort in file order
+      CatalogFile.sort(total, (i, j) -> {
+        int compare = Long.compare(records.getLong(i * RECORD_LENGTH), 
+            records.getLong(j * RECORD_LENGTH));
+        return compare != 0 ? compare : Long.compare(
+            records.getLong(i * RECORD_LENGTH + 8), 
+            records.getLong(j * RECORD_LENGTH + 8));
+      }, (i, j) -> swap_records(records, i, j));
+      
+      int items = 0;
+      for (int i = 0; i < total; i++) {
+        if (i + 1 < total && records.getLong((i + 1) * RECORD_LENGTH) 
+            == records.getLong(i * RECORD_LENGTH)) {
+          continue;
+        }
+        if (items != i) {
+          int from = i * RECORD_LENGTH;
+          int to = items * RECORD_LENGTH;
+          records.putLong(to, records.getLong(from))
+              .putLong(to + 8, records.getLong(from + 8))
+              .putInt(to + 16, records.getInt(from + 16));
+        }
+        items++;
+      }
+      records.force();
+      
+      //Cut off the records of repeated item-IDs so the table starts zeroed
+      long tableStart = HEADER_LENGTH + dataLength 
+          + (long) items * RECORD_LENGTH;
+      out.truncate(tableStart);
+      int slots = table_slots(items);
+      MappedByteBuffer[] table = map_table(out, 
+          FileChannel.MapMode.READ_WRITE, tableStart, slots);
+      for (int i = 0; i < items; i++) {
+        long itemId = records.getLong(i * RECORD_LENGTH);
+        int slot = hash(itemId, slots - 1);
+        while (table[slot / TABLE_PART].getInt(slot_offset(slot) + 8) != 0) {
+          slot = (slot + 1) & (slots - 1);
+        }
+        table[slot / TABLE_PART].putLong(slot_offset(slot), itemId)
+            .putInt(slot_offset(slot) + 8, i + 1);
+      }
+      for (MappedByteBuffer part : table) {
+        part.force();
+      }
+      
+      header.clear();
+      header.putLong(size).putLong(modified).putInt(items).putLong(dataLength);
+      header.flip();
+      while (header.hasRemaining()) {
+        out.write(header, header.position());
+      }
+      out.force(true);
+    }
+    Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, 
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /* Swap two index records.
+  **
+  ** @param records the index records
+  ** @param i the number of the first record
+  ** @param j the number of the second record
+  */
+  private static void swap_records(ByteBuffer records, int i, int j) {
+    int a = i * RECORD_LENGTH;
+    int b = j * RECORD_LENGTH;
+    long itemId = records.getLong(a);
+    long offset = records.getLong(a + 8);
+    int length = records.getInt(a + 16);
+    records.putLong(a, records.getLong(b))
+        .putLong(a + 8, records.getLong(b + 8))
+        .putInt(a + 16, records.getInt(b + 16));
+    records.putLong(b, itemId).putLong(b + 8, offset).putInt(b + 16, length);
+  }
+  
   /* Return the string representation of the stock content.
   **
   ** @return the string representation of the stock content.
   */
   public String toString() {
-    String string = "";
-    for (Long itemId : contentMap.keySet()) {
-      string = string + itemId + " " + contentMap.get(itemId) 
-	      + ComsFormat.newline;
+    StringBuilder string = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      int record = i * RECORD_LENGTH;
+      string.append(index.getLong(record)).append(" ")
+          .append(read_content(record)).append(ComsFormat.newline);
     }
-    return string;
+    return string.toString();
   }
   
   /* Returns the content registered for the given itemId
@@ -269,7 +517,26 @@ class StockContent {
   ** @return the content associated with the given itemId
   */
   public String get_content (long itemId) {
-    return contentMap.get(itemId);
+    int slot = hash(itemId, mask);
+    int recordNumber;
+    while ((recordNumber = table[slot / TABLE_PART].getInt(slot_offset(slot)
+        + 8)) != 0) {
+      if (table[slot / TABLE_PART].getLong(slot_offset(slot)) == itemId) {
+        return read_content((recordNumber - 1) * RECORD_LENGTH);
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+  
+  /* Read the content of an index record from the copy of the content file.
+  **
+  ** @param record the offset of the record in the index
+  ** @return the content
+  */
+  private String read_content(int record) {
+    byte[] content = new byte[index.getInt(record + 16)];
+    data.get((int) index.getLong(record + 8), content);
+    return new String(content, StandardCharsets.UTF_8);
   }
 }
-
@@ -0,0 +1,91 @@
+package drmudp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* A cache of the content of items fetched from the Content server, keyed by
+** item ID, so that popular items are not fetched again for every purchase.
+** The cache holds at most a fixed number of items and evicts the least
+** recently used one when it is full. Entries also expire after a fixed time
+** so content changed by a Content server that restarts at the same address
+** is picked up. The number of hits and misses is counted and logged by the
+** Store when ComsFormat.verbose is set.
+*/
+class ContentCache {
+  private long timeToLive; //time in ms an entry is kept for
+  private LinkedHashMap<Long, Entry> entries; //entries in least recent order
+  private long hits = 0; //number of gets answered from the cache
+  private long misses = 0; //number of gets not answered from the cache
+
+  /* Create a new empty content cache.
+  **
+  ** @param maxEntries the most items the cache will hold
+  ** @param timeToLive the time in ms an entry is kept for
+  */
+  public ContentCache(int maxEntries, long timeToLive) {
+    this.timeToLive = timeToLive;
+    entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /* Return the cached content of an item.
+  **
+  ** @param itemId the ID of the item
+  ** @return the content of the item, null if it isn't cached
+  */
+  public synchronized String get(long itemId) {
+    Entry entry = entries.get(itemId);
+    if (entry != null
+        && System.currentTimeMillis() - entry.created > timeToLive) {
+      entries.remove(itemId);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.content;
+  }
+
+  /* Add the content of an item to the cache.
+  **
+  ** @param itemId the ID of the item
+  ** @param content the content of the item
+  */
+  public synchronized void put(long itemId, String content) {
+    entries.put(itemId, new Entry(content, System.currentTimeMillis()));
+  }
+
+  /* Remove every item from the cache.
+  */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /* Return the hit and miss counts of the cache.
+  **
+  ** @return the counts as text
+  */
+  public synchronized String toString() {
+    return "Content cache: " + hits + " hits, " + misses + " misses, "
+        + entries.size() + " items";
+  }
+
+  /* The cached content of an item and the time in ms it was fetched.
+  */
+  private static class Entry {
+    private final String content;
+    private final long created;
+
+    private Entry(String content, long created) {
+      this.content = content;
+      this.created = created;
+    }
+  }
+}
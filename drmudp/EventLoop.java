@@ -0,0 +1,515 @@
+package drmudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/* A non-blocking server core shared by the NameServer, Store, Bank and Content
+** processes. A single thread waits on a Selector for datagrams arriving on the
+** server's DatagramChannel, reads every datagram that is ready and passes it
+** to the handler registered for the message's opcode (the first word of the
+** message). Messages with an unknown opcode are passed to the default handler
+** if one is set, otherwise they are ignored.
+**
+** Replies to requests that carry a request ID are kept in a reply cache so a
+** retransmitted request is answered from the cache rather than processed a
+** second time.
+**
+** A reply to a request with an ID that doesn't fit in one datagram of 
+** ComsFormat.mtu bytes is split into numbered fragments and sent as a 
+** Transfer, which uses a sliding window driven by the ACK messages of the
+** client. The client asks for any fragments it didn't receive with a RESEND
+** message, which is answered with just the missing fragments. A transfer
+** that is no longer held is restarted from the reply cache.
+**
+** Binary requests are read in place from the receive buffer into a single
+** reused Request, and binary replies are built in pooled direct buffers, so
+** the loop itself doesn't allocate a buffer or Request per message. Handlers
+** may still allocate, for example to read a string field or build a reply.
+** The address of the sender of each datagram is made by the DatagramChannel,
+** which reuses it while datagrams keep coming from the same sender. 
+** Messages are only logged when ComsFormat.verbose is set.
+*/
+class EventLoop {
+  private DatagramChannel channel; //channel to receive and send datagrams
+  private Selector selector; //selector used to wait for incoming datagrams
+  private ByteBuffer receiveBuffer; //reused buffer to read datagrams into
+  private BufferPool sendBuffers; //pool of buffers to build replies in
+  //Reused request, with its field positions and types, for binary messages
+  private Request binaryRequest;
+  private int[] offsets;
+  private byte[] types;
+  //Action run by the selector when datagrams are waiting
+  private Consumer<SelectionKey> readAction = key -> read_messages();
+
+  //Map of message opcodes to the handler used to process them
+  private HashMap<String, MessageHandler> handlers;
+  private MessageHandler defaultHandler = null;
+  private ReplyCache replyCache; //replies already sent to clients
+  //Map of requests to the fragmented replies being sent to them
+  private ConcurrentHashMap<ReplyCache.Key, Transfer> transfers;
+
+  /* Create a new event loop listening for datagrams on the given port.
+  **
+  ** @param port the port to listen on
+  */
+  public EventLoop(int port) throws IOException {
+    handlers = new HashMap<String, MessageHandler>();
+    replyCache = new ReplyCache(ComsFormat.replyCacheSize, 
+        ComsFormat.replyCacheTime);
+    transfers = new ConcurrentHashMap<ReplyCache.Key, Transfer>();
+    receiveBuffer = ByteBuffer.allocateDirect(ComsFormat.mtu);
+    sendBuffers = new BufferPool(ComsFormat.sendBuffers, ComsFormat.mtu);
+    offsets = new int[WireCodec.MAX_FIELDS];
+    types = new byte[WireCodec.MAX_FIELDS];
+    binaryRequest = new Request(this, offsets, types);
+    selector = Selector.open();
+    channel = DatagramChannel.open();
+    channel.bind(new InetSocketAddress(port));
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ);
+  }
+
+  /* Register the handler used to process messages with the given opcode.
+  **
+  ** @param opcode the first word of the messages to handle
+  ** @param handler the handler to process the messages with
+  */
+  public void add_handler(String opcode, MessageHandler handler) {
+    handlers.put(opcode, handler);
+  }
+
+  /* Register the handler used to process messages whose opcode has no handler
+  ** of its own.
+  **
+  ** @param handler the handler to process the messages with
+  */
+  public void set_default_handler(MessageHandler handler) {
+    defaultHandler = handler;
+  }
+
+  /* Return the port the event loop is listening on.
+  **
+  ** @return the port
+  */
+  public int get_port() throws IOException {
+    return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+  }
+
+  /* Wait for and process incoming datagrams forever.
+  */
+  public void run() {
+    while (true) {
+      try {
+        selector.select(readAction);
+      } catch (IOException e) {
+        System.err.print("Message Read Failure. Ignoring\n");
+      }
+    }
+  }
+
+  /* Read every datagram currently waiting on the channel and pass each one to
+  ** its handler. A binary Request is only valid until its handler returns.
+  */
+  private void read_messages() {
+    while (true) {
+      SocketAddress client;
+      receiveBuffer.clear();
+      try {
+        client = channel.receive(receiveBuffer);
+      } catch (IOException e) {
+        System.err.print("Message Read Failure. Ignoring\n");
+        return;
+      }
+      if (client == null) {
+        return;
+      }
+      receiveBuffer.flip();
+
+      Request request;
+      if (WireCodec.is_binary(receiveBuffer)) {
+        int fieldCount = WireCodec.decode_fields(receiveBuffer, offsets, 
+            types);
+        if (fieldCount < 0) {
+          continue;
+        }
+        request = binaryRequest;
+        request.reset(receiveBuffer, fieldCount, (InetSocketAddress) client);
+      } else {
+        byte[] receiveData = new byte[receiveBuffer.remaining()];
+        receiveBuffer.get(receiveData);
+        String line = new String(receiveData, StandardCharsets.UTF_8).trim();
+        request = new Request(line, (InetSocketAddress) client, this);
+      }
+      if (ComsFormat.verbose) {
+        System.out.println("Message from Client: " + request.get_message());
+      }
+
+      long requestId = request.get_requestId();
+      if (requestId >= 0 
+          && (request.get_opcode().equals(ComsFormat.resendRequest)
+          || request.get_opcode().equals(ComsFormat.ack))) {
+        process_transfer_message(request);
+        continue;
+      }
+      if (requestId >= 0) {
+        Object cachedReply = replyCache.check(request.get_client(), requestId);
+        if (cachedReply != null) {
+          //Retransmission, resend the reply if the original has one already
+          if (!cachedReply.equals("")) {
+            send_reply(requestId, cachedReply, request.get_client(), 
+                request.is_binary());
+          }
+          continue;
+        }
+      }
+
+      MessageHandler handler = handlers.get(request.get_opcode());
+      if (handler == null) {
+        handler = defaultHandler;
+        request.use_whole_message();
+      }
+      if (handler != null) {
+        handler.handle(request);
+      }
+    }
+  }
+
+  /* Process an ACK or RESEND message from a client receiving a fragmented 
+  ** reply and send the fragments it calls for. If the transfer is no longer
+  ** held it is restarted from the reply cache.
+  **
+  ** @param request the ACK or RESEND message
+  */
+  private void process_transfer_message(Request request) {
+    ReplyCache.Key key = new ReplyCache.Key(request.get_client(), 
+        request.get_requestId());
+    Transfer transfer = transfers.get(key);
+    if (transfer == null) {
+      Object cachedReply = replyCache.get(request.get_client(), 
+          request.get_requestId());
+      if (cachedReply == null) {
+        return;
+      }
+      transfer = new Transfer(ComsFormat.requestIdTag 
+          + request.get_requestId() + ComsFormat.separator, 
+          to_fragments(cachedReply));
+      transfer.restart();
+      transfers.put(key, transfer);
+    }
+
+    List<Integer> toSend;
+    if (request.get_opcode().equals(ComsFormat.ack)) {
+      toSend = transfer.ack(request.get_parts());
+    } else {
+      toSend = transfer.resend(request.get_parts());
+    }
+    for (int i : toSend) {
+      send_fragment(transfer, i, request.get_client());
+    }
+    if (transfer.is_done()) {
+      transfers.remove(key);
+    }
+  }
+
+  /* Send a reply to a request, tagged with the ID of the request if it has one.
+  ** This may be called from any thread.
+  **
+  ** @param request the request to reply to
+  ** @param reply the message to reply with
+  */
+  public void reply(Request request, String reply) {
+    reply(request.get_client(), request.get_requestId(), request.is_binary(),
+        (Object) reply);
+  }
+
+  /* Send a reply that has already been split into fragments, so a reply sent
+  ** to many requests is only encoded and split once. This may be called from
+  ** any thread.
+  **
+  ** @param request the request to reply to
+  ** @param reply the message to reply with
+  */
+  public void reply(Request request, Fragments reply) {
+    reply(request.get_client(), request.get_requestId(), request.is_binary(),
+        reply);
+  }
+
+  /* Send a reply to a request that is no longer held, such as one answered
+  ** once it has been recorded. This may be called from any thread.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request, -1 if it has none
+  ** @param binary whether the request was binary
+  ** @param reply the message to reply with
+  */
+  public void reply(InetSocketAddress client, long requestId, boolean binary,
+      String reply) {
+    reply(client, requestId, binary, (Object) reply);
+  }
+
+  /* Record a reply in the reply cache and send it.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request, -1 if it has none
+  ** @param binary whether the request was binary
+  ** @param reply the message to reply with, a String or Fragments
+  */
+  private void reply(InetSocketAddress client, long requestId, boolean binary,
+      Object reply) {
+    if (requestId >= 0) {
+      replyCache.put(client, requestId, reply);
+    }
+    send_reply(requestId, reply, client, binary);
+  }
+
+  /* Send a reply to a request. A reply to a request with an ID is tagged with
+  ** the ID and, if it is too big for one datagram, is sent as a Transfer. A
+  ** reply to a binary request that fits in one datagram is sent as binary.
+  **
+  ** @param requestId the ID of the request, -1 if it has none
+  ** @param reply the message to reply with, a String or Fragments
+  ** @param client the address of the remote process
+  ** @param binary whether the request was binary
+  */
+  private void send_reply(long requestId, Object reply,
+      InetSocketAddress client, boolean binary) {
+    if (reply instanceof String) {
+      String text = (String) reply;
+      if (requestId < 0) {
+        send(text, client);
+        return;
+      }
+      if (binary && send_binary_reply(requestId, text, client)) {
+        return;
+      }
+      reply = new Fragments(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    Fragments fragments = (Fragments) reply;
+    if (requestId < 0) {
+      send(fragments.get_payload(), null, client);
+      return;
+    }
+    if (binary && send_binary_reply(requestId, fragments, client)) {
+      return;
+    }
+    String tag = ComsFormat.requestIdTag + requestId + ComsFormat.separator;
+    if (!binary && tag.length() + fragments.get_length() <= ComsFormat.mtu) {
+      send(fragments.get_payload(), tag, client);
+      return;
+    }
+
+    //Drop transfers that clients have abandoned
+    long now = System.currentTimeMillis();
+    transfers.values().removeIf(
+        old -> now - old.get_created() > ComsFormat.replyCacheTime);
+
+    Transfer transfer = new Transfer(tag, fragments);
+    transfers.put(new ReplyCache.Key(client, requestId), transfer);
+    for (int i : transfer.start()) {
+      send_fragment(transfer, i, client);
+    }
+  }
+
+  /* Return a cached reply split into fragments.
+  **
+  ** @param reply the reply, a String or Fragments
+  ** @return the fragments of the reply
+  */
+  private static Fragments to_fragments(Object reply) {
+    if (reply instanceof Fragments) {
+      return (Fragments) reply;
+    }
+    return new Fragments(((String) reply).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /* Send a reply to a binary request as a binary message, built in a pooled
+  ** buffer.
+  **
+  ** @param requestId the ID of the request
+  ** @param reply the message to reply with
+  ** @param client the address of the remote process
+  ** @return false if the reply is too big for one datagram and wasn't sent
+  */
+  private boolean send_binary_reply(long requestId, String reply,
+      InetSocketAddress client) {
+    ByteBuffer sendBuffer = sendBuffers.acquire();
+    try {
+      WireCodec.start_message(sendBuffer, WireCodec.REPLY_OPCODE,
+          WireCodec.FLAG_REPLY, requestId);
+      if (!WireCodec.put_string(sendBuffer, reply)) {
+        return false;
+      }
+      send_binary(sendBuffer, requestId, reply, client);
+    } finally {
+      sendBuffers.release(sendBuffer);
+    }
+    return true;
+  }
+
+  /* Send a reply that has been split into fragments to a binary request as
+  ** a binary message, if it fits in one datagram.
+  **
+  ** @param requestId the ID of the request
+  ** @param reply the message to reply with
+  ** @param client the address of the remote process
+  ** @return false if the reply is too big for one datagram and wasn't sent
+  */
+  private boolean send_binary_reply(long requestId, Fragments reply,
+      InetSocketAddress client) {
+    ByteBuffer sendBuffer = sendBuffers.acquire();
+    try {
+      WireCodec.start_message(sendBuffer, WireCodec.REPLY_OPCODE,
+          WireCodec.FLAG_REPLY, requestId);
+      int length = reply.get_length();
+      if (sendBuffer.remaining() < 3 + length) {
+        return false;
+      }
+      sendBuffer.put(WireCodec.STRING).putShort((short) length);
+      sendBuffer.put(sendBuffer.position(), reply.get_payload(), 0, length);
+      sendBuffer.position(sendBuffer.position() + length);
+      send_binary(sendBuffer, requestId, reply, client);
+    } finally {
+      sendBuffers.release(sendBuffer);
+    }
+    return true;
+  }
+
+  /* Finish a binary reply built in a send buffer and send it.
+  **
+  ** @param sendBuffer the buffer holding the reply's fields
+  ** @param requestId the ID of the request
+  ** @param reply the message the reply holds, a String or Fragments
+  ** @param client the address of the remote process
+  */
+  private void send_binary(ByteBuffer sendBuffer, long requestId, 
+      Object reply, InetSocketAddress client) {
+    WireCodec.end_message(sendBuffer, 0);
+    sendBuffer.flip();
+    try {
+      channel.send(sendBuffer, client);
+      if (ComsFormat.verbose) {
+        System.out.println("Message to client: " + requestId + " " 
+            + (reply instanceof Fragments ? StandardCharsets.UTF_8.decode(
+            ((Fragments) reply).get_payload().duplicate()) : reply));
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to send reply");
+    }
+  }
+
+  /* Send one fragment of a reply. The fragment is sent as the request ID tag,
+  ** the fragment keyword, the number of the fragment, the number of fragments
+  ** and then the bytes of the reply the fragment holds, built in a pooled
+  ** buffer.
+  **
+  ** @param transfer the transfer of the reply
+  ** @param i the number of the fragment to send
+  ** @param client the address of the remote process
+  */
+  private void send_fragment(Transfer transfer, int i, SocketAddress client) {
+    ByteBuffer fragment = transfer.get_fragments().get(i);
+    ByteBuffer sendBuffer = sendBuffers.acquire();
+    try {
+      sendBuffer.put(transfer.get_header());
+      put_number(sendBuffer, i);
+      sendBuffer.put((byte) ComsFormat.separator.charAt(0));
+      put_number(sendBuffer, transfer.get_count());
+      sendBuffer.put((byte) ComsFormat.separator.charAt(0));
+      sendBuffer.put(sendBuffer.position(), fragment, 0, fragment.limit());
+      sendBuffer.position(sendBuffer.position() + fragment.limit()).flip();
+      channel.send(sendBuffer, client);
+      if (ComsFormat.verbose) {
+        System.out.println("Fragment " + (i + 1) + " of " 
+            + transfer.get_count() + " to client: " 
+            + transfer.get_tag().trim());
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to send reply");
+    } finally {
+      sendBuffers.release(sendBuffer);
+    }
+  }
+
+  /* Write a number that isn't negative to a buffer as decimal digits.
+  **
+  ** @param buffer the buffer to write to
+  ** @param number the number
+  */
+  private static void put_number(ByteBuffer buffer, int number) {
+    int end = buffer.position() + 1;
+    for (int rest = number / 10; rest > 0; rest /= 10) {
+      end++;
+    }
+    for (int at = end - 1; at >= buffer.position(); at--) {
+      buffer.put(at, (byte) ('0' + number % 10));
+      number /= 10;
+    }
+    buffer.position(end);
+  }
+
+  /* Send a reply that has already been encoded as one datagram, after a tag
+  ** if it has one.
+  **
+  ** @param payload the encoded reply, not moved or changed
+  ** @param tag the request ID tag to send first, null if there is none
+  ** @param client the address of the remote process
+  */
+  private void send(ByteBuffer payload, String tag, SocketAddress client) {
+    byte[] header = tag == null ? new byte[0] 
+        : tag.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer sendBuffer = ByteBuffer.allocate(header.length 
+        + payload.limit());
+    sendBuffer.put(header).put(header.length, payload, 0, payload.limit());
+    try {
+      channel.send(sendBuffer.clear(), client);
+      if (ComsFormat.verbose) {
+        System.out.println("Message to client: " 
+            + StandardCharsets.UTF_8.decode(sendBuffer.clear()));
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to send reply");
+    }
+  }
+
+  /* Send a datagram to a remote process. This may be called from any thread.
+  **
+  ** @param reply the message to send
+  ** @param client the address of the remote process
+  */
+  public void send(String reply, SocketAddress client) {
+    ByteBuffer sendBuffer = ByteBuffer.wrap(
+        reply.getBytes(StandardCharsets.UTF_8));
+    try {
+      channel.send(sendBuffer, client);
+      if (ComsFormat.verbose) {
+        System.out.println("Message to client: " + reply);
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to send reply");
+    }
+  }
+}
+
+/* A handler used by an EventLoop to process a received message. A handler 
+** that keeps the Request after it returns, for example to reply once a 
+** downstream call completes, must keep the copy returned by Request.detach.
+*/
+interface MessageHandler {
+
+  /* Process a message received from a remote process.
+  **
+  ** @param request the message received and the address to reply to
+  */
+  void handle(Request request);
+}
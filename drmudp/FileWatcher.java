@@ -0,0 +1,140 @@
+package drmudp;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/* Watches a file and reloads it whenever it is written, so a server can pick
+** up a changed data file without restarting. Changes are waited on and the
+** file is reloaded on a background thread. The reloader is expected to parse
+** the file into a new immutable snapshot and swap it in with a single write
+** of a volatile field, so requests being processed are never blocked and
+** always see either the whole old snapshot or the whole new one. If the file
+** can't be read or parsed the old snapshot is kept.
+**
+** The file's directory is registered for changes when the watcher is 
+** created, but changes are only acted on once it is started. A server creates
+** its watcher before loading the file for the first time and starts it after,
+** so a change made while the file is first being loaded is still seen.
+**
+** The number of reloads and failures and the time each reload took are
+** recorded and logged after each reload.
+*/
+class FileWatcher {
+  private Path file; //the file to watch
+  private Reloader reloader; //action that reloads the file
+  private Thread thread; //thread that waits for changes and reloads
+  private long reloads = 0; //number of successful reloads
+  private long failures = 0; //number of reloads that failed
+  private double lastReloadTime = 0; //time of the last reload in ms
+  private double maxReloadTime = 0; //time of the slowest reload in ms
+
+  /* Register for changes to a file. Nothing is reloaded until the watcher
+  ** is started.
+  **
+  ** @param file the file to watch
+  ** @param reloader the action that reloads the file
+  */
+  public FileWatcher(Path file, Reloader reloader) throws IOException {
+    this.file = file.toAbsolutePath();
+    this.reloader = reloader;
+
+    WatchService watcher = FileSystems.getDefault().newWatchService();
+    this.file.getParent().register(watcher,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+
+    thread = new Thread(() -> watch(watcher),
+        "Watcher " + this.file.getFileName());
+    thread.setDaemon(true);
+  }
+
+  /* Start reloading the file after each change, including any changes made
+  ** since the watcher was created.
+  */
+  public void start() {
+    thread.start();
+  }
+
+  /* Wait for changes to the file and reload it after each one. Changes that
+  ** arrive within ComsFormat.reloadDelay of each other are reloaded once,
+  ** so a file written in several pieces is only read when complete.
+  **
+  ** @param watcher the watch service the file's directory is registered with
+  */
+  private void watch(WatchService watcher) {
+    while (true) {
+      try {
+        WatchKey key = watcher.take();
+        boolean changed = false;
+        while (key != null) {
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (file.getFileName().equals(event.context())) {
+              changed = true;
+            }
+          }
+          key.reset();
+          key = watcher.poll(ComsFormat.reloadDelay, TimeUnit.MILLISECONDS);
+        }
+        if (changed) {
+          reload();
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+    }
+  }
+
+  /* Reload the file and record how long it took.
+  */
+  private void reload() {
+    long start = System.nanoTime();
+    try {
+      reloader.reload(file);
+    } catch (IOException | RuntimeException | Error e) {
+      //Errors too, such as running out of memory or a fault reading a
+      //mapped file, so the watcher keeps running for the next change
+      synchronized (this) {
+        failures++;
+      }
+      System.err.println("Reload of " + file.getFileName()
+          + " failed, keeping the old data: " + e);
+      System.err.println(this);
+      return;
+    }
+    double time = (System.nanoTime() - start) / 1e6;
+    synchronized (this) {
+      reloads++;
+      lastReloadTime = time;
+      maxReloadTime = Math.max(maxReloadTime, time);
+    }
+    System.out.println(this);
+  }
+
+  /* Return the reload counts and times.
+  **
+  ** @return the counts and times as text
+  */
+  public synchronized String toString() {
+    return "Reloaded " + file.getFileName() + ": " + reloads + " reloads, "
+        + failures + " failures, last " + lastReloadTime + " ms, max "
+        + maxReloadTime + " ms";
+  }
+}
+
+/* An action that reads a changed file and swaps in the data it holds.
+*/
+interface Reloader {
+
+  /* Reload a file.
+  **
+  ** @param file the file to reload
+  */
+  void reload(Path file) throws IOException;
+}
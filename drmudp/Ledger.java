@@ -0,0 +1,852 @@
+package drmudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/* The Bank's ledger of authorisations, kept in an append-only write-ahead
+** log. Every authorisation request the Bank answers is written to the log
+** and forced to disk before the reply is sent, so an answered purchase is
+** never lost by a crash or restart.
+**
+** Requests are written by a single writer thread with group commit: the
+** requests that arrive while one write and force is in progress are all
+** written by the next one, up to a batch size given when the ledger is 
+** opened, so under load many requests share each force.
+**
+** Each log record is a magic number and the length and CRC32 of its body 
+** followed by the body. The body of a request record is the time, the 
+** request ID, the address of the client that sent it and the item-ID, price,
+** card and result of each purchase in it. Each batch ends with a commit 
+** marker, a record with its own magic number whose body is the offset the 
+** batch starts at and the CRC32 of every byte of the batch's records, and 
+** each segment starts with a marker of an empty batch. The batch is written 
+** and forced in one go, and the disk may keep any of its pages and lose 
+** others if the machine crashes first, so a batch only counts as committed 
+** once its marker and every byte it covers are read back intact.
+**
+** The log is a series of numbered segment files (the ledger file's name with
+** the segment number added). When the segment being written passes 
+** ComsFormat.ledgerSegmentSize a new one is started and a checkpoint file 
+** (the ledger file's name with CHECKPOINT_SUFFIX added) records its number
+** and the counts up to its start. Old segments are kept as the record of 
+** past authorisations but aren't read again. On startup the counts are 
+** taken from the checkpoint and the segments from it on are replayed, 
+** through a fixed size buffer, to bring them up to date. The replies to the
+** latest ComsFormat.replyCacheSize requests, read from those segments and 
+** the one before, are kept so a request retransmitted across a restart is 
+** answered with its recorded result rather than being charged again.
+**
+** Only the end of the last segment after its last committed batch, left by a
+** crash during a write, is cut off, damaged or not: none of its requests 
+** were replied to. Damage with a committed batch after it is corruption 
+** rather than a torn write, as that batch was only written once the ones 
+** before it were forced, so startup fails and the log is left untouched for
+** an operator to look at. Segments written before commit markers were added 
+** are read as before, with each intact record counted on its own, and are
+** never written to again.
+**
+** Once warmed up, writing an authorisation allocates nothing: entries are 
+** taken from a pool and given back once the listener has been told they 
+** are durable, they are encoded straight into the writer's buffer and the
+** latest replies are kept in a ReplyCache.
+*/
+class Ledger {
+  public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+  private static final int MAGIC = 0x4C454447;
+  private static final int COMMIT_MAGIC = 0x434F4D54;
+  //Record header: magic number, body length, CRC32 of the body
+  private static final int HEADER_LENGTH = 12;
+  //Commit marker body: offset of the start of the batch, CRC32 of the batch
+  private static final int COMMIT_BODY_LENGTH = 12;
+  //Purchase: item-ID, price, card, result
+  private static final int PURCHASE_LENGTH = 21;
+  //Longest record body accepted, more than a datagram of purchases needs
+  private static final int MAX_BODY_LENGTH = 1 << 20;
+  //Checkpoint: segment number, requests, purchases, purchases approved
+  private static final int CHECKPOINT_LENGTH = 32;
+  //Size of the buffer the log is read and written through
+  private static final int BUFFER_LENGTH = 1 << 16;
+  //Most purchases a request can hold, as many as fit in a message's fields
+  private static final int MAX_PURCHASES = WireCodec.MAX_FIELDS / 3;
+
+  private Path file; //the ledger file the segment and checkpoint names use
+  private long segment; //number of the segment being written
+  private FileChannel channel; //the segment being written
+  private ReplyCache replies; //latest replies by client and request ID
+  private int batchSize; //most requests written by one force
+  private Listener listener; //told when each request is durable
+  private ArrayDeque<Entry> queue; //requests waiting to be written
+  private ArrayDeque<Entry> free; //entries to reuse for new requests
+
+  private long records = 0; //number of requests in the log
+  private long authorisations = 0; //number of purchases in the log
+  private long approved = 0; //number of purchases approved
+  private long commits = 0; //number of forces of the log since startup
+
+  /* Open a ledger, replaying its log if it has one, and start its writer.
+  **
+  ** @param file the ledger file
+  ** @param batchSize the most requests written by one force
+  ** @param listener the listener told when each request is durable
+  */
+  public Ledger(Path file, int batchSize, Listener listener) 
+      throws IOException {
+    this.file = file;
+    this.batchSize = batchSize;
+    this.listener = listener;
+    replies = new ReplyCache(ComsFormat.replyCacheSize, Long.MAX_VALUE);
+    queue = new ArrayDeque<Entry>(2 * batchSize);
+    free = new ArrayDeque<Entry>(2 * batchSize);
+
+    segment = read_checkpoint();
+    if (segment > 0) {
+      replay(segment - 1, false, false);
+    }
+    //A segment is only left once it is complete, so only the last can be torn
+    while (Files.exists(segment_file(segment + 1))) {
+      replay(segment, true, false);
+      segment++;
+    }
+    long end = replay(segment, true, true);
+
+    channel = FileChannel.open(segment_file(segment), 
+        StandardOpenOption.CREATE, StandardOpenOption.READ, 
+        StandardOpenOption.WRITE);
+    if (end < channel.size()) {
+      System.err.print("Ledger cut off " + (channel.size() - end)
+          + " bytes of writes that were never committed\n");
+      channel.truncate(end);
+      channel.force(true);
+    }
+    channel.position(end);
+    ByteBuffer first = ByteBuffer.allocate(4);
+    channel.read(first, 0);
+    if (end == 0) {
+      start_segment(channel);
+    } else if (first.getInt(0) == MAGIC) {
+      //Written without commit markers, so left for a new segment
+      next_segment();
+    }
+    System.out.println(this);
+
+    Thread writer = new Thread(() -> write(), "Ledger writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /* Return the file of a segment of the log.
+  **
+  ** @param number the number of the segment
+  ** @return the segment file
+  */
+  private Path segment_file(long number) {
+    return Paths.get(String.format("%s.%06d", file, number));
+  }
+
+  /* Read the checkpoint, setting the counts to those at the start of the
+  ** segment it names.
+  **
+  ** @return the number of the segment, 0 if there is no checkpoint
+  */
+  private long read_checkpoint() throws IOException {
+    Path checkpoint = Paths.get(file.toString() + CHECKPOINT_SUFFIX);
+    if (!Files.exists(checkpoint)) {
+      return 0;
+    }
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+    if (data.limit() != CHECKPOINT_LENGTH) {
+      throw new IOException("Ledger checkpoint " + checkpoint 
+          + " is corrupt");
+    }
+    long number = data.getLong();
+    records = data.getLong();
+    authorisations = data.getLong();
+    approved = data.getLong();
+    return number;
+  }
+
+  /* Write a checkpoint naming a segment and the counts at its start.
+  **
+  ** @param number the number of the segment
+  */
+  private void write_checkpoint(long number) throws IOException {
+    ByteBuffer data = ByteBuffer.allocate(CHECKPOINT_LENGTH);
+    synchronized (this) {
+      data.putLong(number).putLong(records).putLong(authorisations)
+          .putLong(approved);
+    }
+    data.flip();
+    CatalogFile.write(Paths.get(file.toString() + CHECKPOINT_SUFFIX), data);
+  }
+
+  /* Read every committed batch of a segment through a fixed size buffer.
+  ** The records of the segment before the checkpoint are read just for their
+  ** replies, the others are also added to the counts. The requests of a 
+  ** batch are only recorded once its commit marker has been read.
+  **
+  ** @param number the number of the segment
+  ** @param count true to add the records to the counts
+  ** @param last true if this is the last segment
+  ** @return the offset of the end of the last committed batch
+  */
+  private long replay(long number, boolean count, boolean last) 
+      throws IOException {
+    Path segmentFile = segment_file(number);
+    if (!Files.exists(segmentFile)) {
+      return 0;
+    }
+    try (FileChannel log = FileChannel.open(segmentFile)) {
+      long size = log.size();
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+      buffer.flip();
+      long position = 0; //offset in the segment of the buffer's position
+      long durable = 0; //offset of the end of the last committed batch
+      boolean legacy = false; //whether written without commit markers
+      ArrayList<Entry> pending = new ArrayList<Entry>(); //uncommitted batch
+      CRC32 crc = new CRC32();
+      CRC32 batchCrc = new CRC32(); //CRC of the uncommitted batch's records
+
+      while (position < size) {
+        buffer = fill(log, buffer, HEADER_LENGTH);
+        int at = buffer.position();
+        boolean whole = buffer.remaining() >= HEADER_LENGTH;
+        int magic = whole ? buffer.getInt(at) : 0;
+        int length = whole ? buffer.getInt(at + 4) : -1;
+        if ((magic != MAGIC && magic != COMMIT_MAGIC) || length < 0 
+            || length > MAX_BODY_LENGTH 
+            || position + HEADER_LENGTH + length > size) {
+          return damaged(log, segmentFile, position, durable, last, legacy);
+        }
+        buffer = fill(log, buffer, HEADER_LENGTH + length);
+        at = buffer.position();
+        ByteBuffer body = buffer.slice(at + HEADER_LENGTH, length);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(at + 8)) {
+          return damaged(log, segmentFile, position, durable, last, legacy);
+        }
+        if (position == 0) {
+          legacy = magic == MAGIC;
+        }
+        long end = position + HEADER_LENGTH + length;
+
+        if (magic == MAGIC) {
+          Entry entry = Entry.decode(body);
+          if (entry == null) {
+            return damaged(log, segmentFile, position, durable, last, 
+                legacy);
+          }
+          if (legacy) {
+            record(entry, count);
+            durable = end;
+          } else {
+            pending.add(entry);
+            batchCrc.update(buffer.array(), buffer.arrayOffset() + at, 
+                HEADER_LENGTH + length);
+          }
+        } else if (!legacy && length == COMMIT_BODY_LENGTH 
+            && body.getLong(0) == durable 
+            && body.getInt(8) == (int) batchCrc.getValue()) {
+          for (Entry entry : pending) {
+            record(entry, count);
+          }
+          pending.clear();
+          batchCrc.reset();
+          durable = end;
+        } else {
+          return damaged(log, segmentFile, durable, durable, last, legacy);
+        }
+        buffer.position(at + HEADER_LENGTH + length);
+        position = end;
+      }
+      if (durable < size && !last) {
+        throw corrupt(segmentFile, durable);
+      }
+      return durable;
+    }
+  }
+
+  /* Make sure a buffer reading a segment in order holds a number of bytes 
+  ** from its position on, reading more of the segment if it doesn't.
+  **
+  ** @param log the segment
+  ** @param buffer the buffer, holding the bytes read but not yet used from
+  ** its position to its limit
+  ** @param needed the number of bytes needed
+  ** @return the buffer, or a larger one if needed doesn't fit, holding as
+  ** many of the bytes as the segment has
+  */
+  private static ByteBuffer fill(FileChannel log, ByteBuffer buffer, 
+      int needed) throws IOException {
+    if (buffer.remaining() >= needed) {
+      return buffer;
+    }
+    if (needed > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(needed);
+      larger.put(buffer);
+      buffer = larger;
+    } else {
+      buffer.compact();
+    }
+    while (buffer.hasRemaining()) {
+      if (log.read(buffer) <= 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /* Decide what a damaged record at a position in a segment is. If it is in
+  ** the last segment and no committed batch follows it, it is the torn end 
+  ** of a write interrupted by a crash and the log ends after the last batch
+  ** committed before it. Otherwise the log is corrupt. In a segment written
+  ** without commit markers any intact record after the damage counts as 
+  ** committed.
+  **
+  ** @param log the segment
+  ** @param segmentFile the segment's file
+  ** @param position the offset of the damaged record
+  ** @param durable the offset of the end of the last committed batch
+  ** @param last true if this is the last segment
+  ** @param legacy true if the segment was written without commit markers
+  ** @return the offset the log ends at
+  */
+  private long damaged(FileChannel log, Path segmentFile, long position, 
+      long durable, boolean last, boolean legacy) throws IOException {
+    if (last && !has_record_after(log, position, legacy)) {
+      return durable;
+    }
+    throw corrupt(segmentFile, position);
+  }
+
+  /* Return the exception for a corrupt segment.
+  **
+  ** @param segmentFile the segment's file
+  ** @param position the offset of the corruption
+  ** @return the exception
+  */
+  private static IOException corrupt(Path segmentFile, long position) {
+    return new IOException("Ledger " + segmentFile + " is corrupt at byte " 
+        + position + ", it has been left as it is");
+  }
+
+  /* Look for a committed batch after a position in a segment: a commit 
+  ** marker with a valid CRC whose batch, from the offset it names up to the
+  ** marker, matches the CRC it holds. In a segment written without commit
+  ** markers any record with a valid CRC counts.
+  **
+  ** @param log the segment
+  ** @param position the offset to look after
+  ** @param legacy true if the segment was written without commit markers
+  ** @return true if a committed batch ends after the position
+  */
+  private static boolean has_record_after(FileChannel log, long position,
+      boolean legacy) throws IOException {
+    int magic = legacy ? MAGIC : COMMIT_MAGIC;
+    ByteBuffer window = ByteBuffer.allocate(BUFFER_LENGTH);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    CRC32 crc = new CRC32();
+    for (long start = position + 1; start < log.size(); 
+        start += BUFFER_LENGTH - 3) {
+      window.clear();
+      log.read(window, start);
+      window.flip();
+      for (int i = 0; i + 4 <= window.limit(); i++) {
+        if (window.getInt(i) != magic) {
+          continue;
+        }
+        header.clear();
+        log.read(header, start + i);
+        int length = header.getInt(4);
+        if (header.position() < HEADER_LENGTH || length < 0 
+            || length > MAX_BODY_LENGTH 
+            || (!legacy && length != COMMIT_BODY_LENGTH)) {
+          continue;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        log.read(body, start + i + HEADER_LENGTH);
+        if (body.hasRemaining()) {
+          continue;
+        }
+        body.flip();
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != header.getInt(8)) {
+          continue;
+        }
+        long batchStart = legacy ? 0 : body.getLong(0);
+        if (legacy || (batchStart <= start + i && crc_of(log, batchStart, 
+            start + i) == body.getInt(8))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /* Return the CRC32 of a range of a segment.
+  **
+  ** @param log the segment
+  ** @param start the offset of the start of the range
+  ** @param end the offset of the end of the range
+  ** @return the CRC32 of the bytes of the range
+  */
+  private static int crc_of(FileChannel log, long start, long end) 
+      throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+    for (long at = start; at < end; ) {
+      buffer.clear().limit((int) Math.min(BUFFER_LENGTH, end - at));
+      int read = log.read(buffer, at);
+      if (read <= 0) {
+        break;
+      }
+      buffer.flip();
+      crc.update(buffer);
+      at += read;
+    }
+    return (int) crc.getValue();
+  }
+
+  /* Return an entry with no purchases for a new authorisation request, 
+  ** reusing one given back to the pool if there is one.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @param binary whether the request was sent in the binary format
+  ** @return the entry
+  */
+  public Entry new_entry(InetSocketAddress client, long requestId, 
+      boolean binary) {
+    Entry entry;
+    synchronized (this) {
+      entry = free.poll();
+    }
+    if (entry == null) {
+      entry = new Entry(MAX_PURCHASES);
+    }
+    entry.reset(client, requestId, binary);
+    return entry;
+  }
+
+  /* Write an authorisation request to the log. The listener is told once it
+  ** has been forced to disk, or if it couldn't be written.
+  **
+  ** @param entry the request and the result of each purchase in it, taken 
+  ** from new_entry
+  */
+  public void commit(Entry entry) {
+    synchronized (this) {
+      queue.add(entry);
+      notify();
+    }
+  }
+
+  /* Return the reply recorded for a request already in the ledger.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @return the reply, null if the request isn't one of the latest recorded
+  */
+  public String find(InetSocketAddress client, long requestId) {
+    return (String) replies.get(client, requestId);
+  }
+
+  /* Write waiting requests to the log and force them to disk, as many at a
+  ** time as are waiting up to the batch size, each batch followed by its
+  ** commit marker. A new segment is started once the one being written is 
+  ** full.
+  */
+  private void write() {
+    CRC32 crc = new CRC32();
+    CRC32 batchCrc = new CRC32(); //CRC of the batch's records
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+    ArrayList<Entry> batch = new ArrayList<Entry>(batchSize);
+    while (true) {
+      batch.clear();
+      synchronized (this) {
+        while (queue.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        while (!queue.isEmpty() && batch.size() < batchSize) {
+          batch.add(queue.poll());
+        }
+      }
+
+      IOException failure = null;
+      long batchStart = -1;
+      try {
+        batchStart = channel.position();
+        batchCrc.reset();
+        buffer.clear();
+        for (int i = 0; i < batch.size(); i++) {
+          Entry entry = batch.get(i);
+          if (buffer.remaining() < HEADER_LENGTH + entry.length()) {
+            buffer.flip();
+            batchCrc.update(buffer);
+            buffer.rewind();
+            write_fully(buffer);
+            buffer.clear();
+          }
+          int start = buffer.position();
+          buffer.position(start + HEADER_LENGTH);
+          entry.encode(buffer);
+          seal(buffer, start, MAGIC, crc);
+        }
+        int end = buffer.position();
+        buffer.flip();
+        batchCrc.update(buffer);
+        buffer.limit(buffer.capacity()).position(end);
+        if (buffer.remaining() < HEADER_LENGTH + COMMIT_BODY_LENGTH) {
+          buffer.flip();
+          write_fully(buffer);
+          buffer.clear();
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_LENGTH);
+        buffer.putLong(batchStart).putInt((int) batchCrc.getValue());
+        seal(buffer, start, COMMIT_MAGIC, crc);
+        buffer.flip();
+        write_fully(buffer);
+        channel.force(false);
+      } catch (IOException e) {
+        failure = e;
+        //Cut off what was written of the batch, so later ones can commit
+        try {
+          if (batchStart >= 0) {
+            channel.truncate(batchStart);
+            channel.position(batchStart);
+          }
+        } catch (IOException ignored) {
+          //Never committed, so cut off when the log is next replayed
+        }
+      }
+
+      if (failure == null) {
+        synchronized (this) {
+          commits++;
+          for (int i = 0; i < batch.size(); i++) {
+            record(batch.get(i), true);
+          }
+        }
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        listener.committed(batch.get(i), failure);
+      }
+      synchronized (this) {
+        for (int i = 0; i < batch.size() && free.size() < 2 * batchSize; 
+            i++) {
+          free.add(batch.get(i));
+        }
+      }
+      if (failure != null) {
+        continue;
+      }
+
+      try {
+        if (channel.position() >= ComsFormat.ledgerSegmentSize) {
+          next_segment();
+        }
+      } catch (IOException e) {
+        //The current segment is still complete, so carry on writing to it
+        System.err.print("Could not start a new ledger segment: " + e 
+            + "\n");
+      }
+    }
+  }
+
+  /* Start writing to a new segment. The new segment is created, with its
+  ** opening commit marker, before the checkpoint names it, so a crash in 
+  ** between just replays one more segment.
+  */
+  private void next_segment() throws IOException {
+    FileChannel next = FileChannel.open(segment_file(segment + 1),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      start_segment(next);
+      write_checkpoint(segment + 1);
+    } catch (IOException e) {
+      next.close();
+      throw e;
+    }
+    channel.close();
+    channel = next;
+    segment++;
+  }
+
+  /* Write the commit marker of an empty batch at the start of a new 
+  ** segment and force it to disk, marking the segment as one written with 
+  ** commit markers.
+  **
+  ** @param log the new segment
+  */
+  private static void start_segment(FileChannel log) throws IOException {
+    ByteBuffer marker = ByteBuffer.allocate(HEADER_LENGTH 
+        + COMMIT_BODY_LENGTH);
+    marker.position(HEADER_LENGTH);
+    marker.putLong(0).putInt((int) new CRC32().getValue());
+    seal(marker, 0, COMMIT_MAGIC, new CRC32());
+    marker.flip();
+    while (marker.hasRemaining()) {
+      log.write(marker);
+    }
+    log.force(false);
+  }
+
+  /* Fill in the header of a record whose body has just been put in a buffer
+  ** after room for the header.
+  **
+  ** @param buffer the buffer, positioned after the body
+  ** @param start the offset of the record in the buffer
+  ** @param magic the magic number of the record
+  ** @param crc the CRC32 to compute the body's CRC with
+  */
+  private static void seal(ByteBuffer buffer, int start, int magic, 
+      CRC32 crc) {
+    int end = buffer.position();
+    buffer.position(start + HEADER_LENGTH).limit(end);
+    crc.reset();
+    crc.update(buffer);
+    buffer.limit(buffer.capacity());
+    buffer.putInt(start, magic)
+        .putInt(start + 4, end - start - HEADER_LENGTH)
+        .putInt(start + 8, (int) crc.getValue());
+  }
+
+  /* Write all of a buffer to the end of the log.
+  **
+  ** @param buffer the bytes to write
+  */
+  private void write_fully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /* Add a request in the log to the latest replies, and to the counts.
+  **
+  ** @param entry the request
+  ** @param count true to add the request to the counts
+  */
+  private synchronized void record(Entry entry, boolean count) {
+    if (count) {
+      records++;
+      authorisations += entry.count;
+      for (int i = 0; i < entry.count; i++) {
+        if (entry.approved[i]) {
+          approved++;
+        }
+      }
+    }
+    replies.check(entry.client, entry.requestId);
+    replies.put(entry.client, entry.requestId, entry.reply());
+  }
+
+  /* Return the number of forces of the log since the ledger was opened.
+  **
+  ** @return the number of forces
+  */
+  public synchronized long get_commits() {
+    return this.commits;
+  }
+
+  /* Return the ledger counts.
+  **
+  ** @return the counts as text
+  */
+  public synchronized String toString() {
+    return "Ledger: " + records + " requests, " + authorisations
+        + " purchases, " + approved + " approved, " + commits 
+        + " commits, segment " + segment;
+  }
+
+  /* An authorisation request and the result of each purchase in it. An 
+  ** entry taken from new_entry holds up to MAX_PURCHASES purchases.
+  */
+  static class Entry {
+    private long time; //time in ms the request was answered
+    private long requestId; //ID of the request
+    private InetSocketAddress client; //address of the client that sent it
+    private byte[] ip; //ip address of the client as text in UTF-8
+    private boolean binary; //whether the request was sent as binary
+    private int count = 0; //number of purchases
+    private long[] itemIds;
+    private float[] prices;
+    private long[] cards;
+    private boolean[] approved;
+
+    private Entry(int size) {
+      itemIds = new long[size];
+      prices = new float[size];
+      cards = new long[size];
+      approved = new boolean[size];
+    }
+
+    /* Make the entry hold a new request with no purchases. The text of the
+    ** client's address is kept while the entry is reused for the same 
+    ** client.
+    **
+    ** @param client the address of the client that sent the request
+    ** @param requestId the ID of the request
+    ** @param binary whether the request was sent in the binary format
+    */
+    private void reset(InetSocketAddress client, long requestId, 
+        boolean binary) {
+      if (!client.equals(this.client)) {
+        ip = client.getAddress().getHostAddress().getBytes(
+            StandardCharsets.UTF_8);
+      }
+      this.time = System.currentTimeMillis();
+      this.requestId = requestId;
+      this.client = client;
+      this.binary = binary;
+      count = 0;
+    }
+
+    /* Add a purchase to the entry.
+    **
+    ** @param itemId the ID of the item bought
+    ** @param price the price of the item
+    ** @param card the card the item was paid with
+    ** @param result true if the purchase was approved
+    */
+    public void add(long itemId, float price, long card, boolean result) {
+      itemIds[count] = itemId;
+      prices[count] = price;
+      cards[count] = card;
+      approved[count] = result;
+      count++;
+    }
+
+    /* Return the reply to the request, the result of each purchase on its
+    ** own line.
+    **
+    ** @return the reply
+    */
+    public String reply() {
+      if (count == 1) {
+        return approved[0] ? ComsFormat.purchase_success 
+            : ComsFormat.purchase_fail;
+      }
+      StringBuilder reply = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+        if (i > 0) {
+          reply.append(ComsFormat.newline);
+        }
+        reply.append(approved[i] ? ComsFormat.purchase_success
+            : ComsFormat.purchase_fail);
+      }
+      return reply.toString();
+    }
+
+    /* Return the address of the client that sent the request.
+    **
+    ** @return the address of the client
+    */
+    public InetSocketAddress get_client() {
+      return this.client;
+    }
+
+    /* Return the ID of the request.
+    **
+    ** @return the ID of the request
+    */
+    public long get_requestId() {
+      return this.requestId;
+    }
+
+    /* Return whether the request was sent in the binary format, so its reply
+    ** can be sent in the same format.
+    **
+    ** @return true if the request was binary
+    */
+    public boolean is_binary() {
+      return this.binary;
+    }
+
+    /* Return the length of the entry encoded as the body of a log record.
+    **
+    ** @return the length in bytes
+    */
+    private int length() {
+      return 26 + ip.length + count * PURCHASE_LENGTH;
+    }
+
+    /* Encode the entry as the body of a log record.
+    **
+    ** @param body the buffer to write the body to
+    */
+    private void encode(ByteBuffer body) {
+      body.putLong(time).putLong(requestId).putShort((short) ip.length)
+          .put(ip).putInt(client.getPort()).putInt(count);
+      for (int i = 0; i < count; i++) {
+        body.putLong(itemIds[i]).putFloat(prices[i]).putLong(cards[i])
+            .put((byte) (approved[i] ? 1 : 0));
+      }
+    }
+
+    /* Decode the body of a log record.
+    **
+    ** @param body the body
+    ** @return the entry, null if the body is malformed
+    */
+    private static Entry decode(ByteBuffer body) {
+      try {
+        long time = body.getLong();
+        long requestId = body.getLong();
+        byte[] address = new byte[body.getShort() & 0xFFFF];
+        body.get(address);
+        int port = body.getInt();
+        int size = body.getInt();
+        if (size < 0 || body.remaining() != size * PURCHASE_LENGTH) {
+          return null;
+        }
+        Entry entry = new Entry(size);
+        entry.time = time;
+        entry.requestId = requestId;
+        entry.ip = address;
+        entry.client = new InetSocketAddress(
+            new String(address, StandardCharsets.UTF_8), port);
+        for (int i = 0; i < size; i++) {
+          entry.add(body.getLong(), body.getFloat(), body.getLong(),
+              body.get() == 1);
+        }
+        return entry;
+      } catch (RuntimeException e) {
+        return null;
+      }
+    }
+  }
+
+  /* The action taken once a request written to the ledger is durable, or
+  ** once it couldn't be written. The entry is reused for a later request
+  ** once the listener returns, so it must not be kept.
+  */
+  interface Listener {
+
+    /* Act on a request that has been written to the ledger, or that
+    ** couldn't be.
+    **
+    ** @param entry the request and the result of each purchase in it
+    ** @param failure the reason the request couldn't be written, null if it
+    ** is durable
+    */
+    void committed(Entry entry, IOException failure);
+  }
+}
@@ -0,0 +1,75 @@
+package drmudp;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/* Measures the throughput of the Bank's ledger for several batch sizes. For
+** each batch size a new ledger is opened in a temporary directory and a 
+** number of authorisation requests are committed to it from one thread, 
+** with at most twice the batch size waiting to be written at once, as many
+** clients sending at once would leave. The time until every request is 
+** durable is measured.
+**
+** The benchmark takes two optional arguments, the number of requests 
+** committed for each batch size, 20000 if it isn't given, and a comma 
+** separated list of batch sizes, 1,8,64,512,1024 if it isn't given:
+**
+**   java drmudp.LedgerBenchmark [requests] [batch sizes]
+**
+** The requests per second and the mean number of requests written by each
+** force are printed for each batch size.
+*/
+class LedgerBenchmark {
+
+  /* Run the benchmark.
+  **
+  ** @param args the number of requests and the batch sizes
+  */
+  public static void main(String[] args) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    String[] sizes = (args.length > 1 ? args[1] : "1,8,64,512,1024")
+        .split(ComsFormat.portListSeparator);
+    InetSocketAddress client = new InetSocketAddress(ComsFormat.bank_ip,
+        1234);
+
+    for (String size : sizes) {
+      int batchSize = Integer.parseInt(size);
+      Path directory = Files.createTempDirectory("ledger");
+      try {
+        int waiting = 2 * batchSize;
+        Semaphore room = new Semaphore(waiting);
+        Ledger ledger = new Ledger(directory.resolve(ComsFormat.ledgerFile),
+            batchSize, (entry, e) -> {
+          if (e != null) {
+            System.err.print("Ledger write failed: " + e + "\n");
+            System.exit(1);
+          }
+          room.release();
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+          room.acquire();
+          Ledger.Entry entry = ledger.new_entry(client, i, true);
+          entry.add(i, 10.5f, 1234567812345678L, i % 2 == 0);
+          ledger.commit(entry);
+        }
+        room.acquire(waiting);
+        double time = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("batch %5d: %10.0f requests/s, %7.1f requests per"
+            + " force%n", batchSize, requests / time,
+            (double) requests / ledger.get_commits());
+      } finally {
+        try (Stream<Path> files = Files.walk(directory)) {
+          files.sorted(Comparator.reverseOrder()).forEach(file ->
+              file.toFile().delete());
+        }
+      }
+    }
+  }
+}
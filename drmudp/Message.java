@@ -0,0 +1,115 @@
+package drmudp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/* A message to send to a remote server, made of an opcode and a list of
+** typed fields. The message can be encoded in the text format (the opcode
+** and fields separated by spaces) or the binary format of WireCodec.
+*/
+class Message {
+  private String opcode; //the opcode of the message
+  private ArrayList<Object> fields; //the fields of the message
+
+  /* Create a new message with no fields.
+  **
+  ** @param opcode the opcode of the message
+  */
+  public Message(String opcode) {
+    this.opcode = opcode;
+    fields = new ArrayList<Object>();
+  }
+
+  /* Add a long field to the message.
+  **
+  ** @param value the value of the field
+  ** @return this message
+  */
+  public Message add(long value) {
+    fields.add(value);
+    return this;
+  }
+
+  /* Add a float field to the message.
+  **
+  ** @param value the value of the field
+  ** @return this message
+  */
+  public Message add(float value) {
+    fields.add(value);
+    return this;
+  }
+
+  /* Add an int field to the message.
+  **
+  ** @param value the value of the field
+  ** @return this message
+  */
+  public Message add(int value) {
+    fields.add(value);
+    return this;
+  }
+
+  /* Add a string field to the message.
+  **
+  ** @param value the value of the field
+  ** @return this message
+  */
+  public Message add(String value) {
+    fields.add(value);
+    return this;
+  }
+
+  /* Encode the message in the text format, tagged with a request ID.
+  **
+  ** @param requestId the ID of the request
+  ** @return the encoded message
+  */
+  public ByteBuffer encode_text(long requestId) {
+    StringBuilder text = new StringBuilder();
+    text.append(ComsFormat.requestIdTag).append(requestId)
+        .append(ComsFormat.separator).append(opcode);
+    for (Object field : fields) {
+      text.append(ComsFormat.separator).append(field);
+    }
+    return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /* Encode the message in the binary format.
+  **
+  ** @param requestId the ID of the request
+  ** @return the encoded message
+  */
+  public ByteBuffer encode_binary(long requestId) {
+    ByteBuffer buffer = ByteBuffer.allocate(ComsFormat.mtu);
+    WireCodec.start_message(buffer, WireCodec.encode_opcode(opcode),
+        (byte) 0, requestId);
+    for (Object field : fields) {
+      if (field instanceof Long) {
+        buffer.put(WireCodec.LONG).putLong((Long) field);
+      } else if (field instanceof Float) {
+        buffer.put(WireCodec.FLOAT).putFloat((Float) field);
+      } else if (field instanceof Integer) {
+        buffer.put(WireCodec.INT).putInt((Integer) field);
+      } else if (!WireCodec.put_string(buffer, (String) field)) {
+        throw new IllegalArgumentException("Message too long");
+      }
+    }
+    WireCodec.end_message(buffer, 0);
+    buffer.flip();
+    return buffer;
+  }
+
+  /* Return the text form of the message, without a request ID.
+  **
+  ** @return the message as text
+  */
+  public String toString() {
+    StringBuilder text = new StringBuilder(opcode);
+    for (Object field : fields) {
+      text.append(ComsFormat.separator).append(field);
+    }
+    return text.toString();
+  }
+}
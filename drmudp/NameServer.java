@@ -1,14 +1,43 @@
 package drmudp;
 
-import java.net.*;
 import java.io.*;
-import java.util.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /* The NameServer is used by other processes to register and lookup server 
 ** IP Addresses and Ports given a unique host name.
 **
 ** The NameSever takes one command line argument which is the port the server is
-** to listen to for incoming connections.
+** to listen to for incoming connections, and an optional second argument which
+** is a comma separated list of the ports of the other NameServer replicas.
+**
+** Replicas keep each other up to date by anti-entropy: every 
+** ComsFormat.syncInterval each replica sends its registrations, with the time
+** left on their leases, to every other replica. A replica keeps whichever 
+** copy of a registration has the longer lease left, so all replicas converge 
+** on the latest registration of each host.
+**
+** Several processes may register under the same hostname, each with its own
+** IP address and port. Each is a separate instance with its own lease, and a
+** lookup returns every instance whose lease hasn't run out.
+**
+** Each registration is a lease of ComsFormat.leaseTime milliseconds which is
+** renewed by the process registering again. A host whose lease has run out
+** is never returned by a lookup, and is removed by a sweep run every
+** ComsFormat.leaseSweepInterval.
+**
+** The reply to a lookup of each host is built whenever the host's 
+** registrations change and kept in a table of the hosts, so a binary lookup
+** is answered without allocating: the hostname is found in the table by 
+** hashing and comparing it in place in the received request, and the reply 
+** built for it is sent. A host one of whose leases has run out since its 
+** reply was built is looked up the slow way until the sweep removes it.
 */
 public class NameServer {
   //Exit Status codes
@@ -19,18 +48,27 @@ public class NameServer {
   private static final String REGISTRATION_SUCCESS = "REGISTRATION_SUCCESS";  
   private static final String REGISTRATION_KEYWORD = "REG";
   private static final String LOOKUP_KEYWORD = "LOOKUP";
+  private static final String MULTI_LOOKUP_KEYWORD = "MLOOKUP";
+  private static final String NOT_FOUND = "NOT_FOUND";
+  
+  //Number of words in each registration of a sync message
+  private static final int SYNC_ENTRY_PARTS = 4;
   
   //Number of valid parts in an IPV4 address
   private static final int IPV4_ADDRESS_PARTS = 4;
   
   //Instance Variables
   private int port; //port to receive datagrams on
-  private HashMap<String, DnsEntry> dnsMap; //Map of hostnames to DNSEntries
-  private String message; //Message received from remote process
+  //Map of hostnames to the DNSEntries of each instance of the host, keyed by
+  //the instance's IP and port. Swept of expired entries by the timer.
+  private ConcurrentHashMap<String, ConcurrentHashMap<String, DnsEntry>> dnsMap;
+  private ScheduledExecutorService sweeper; //timer used to sweep dnsMap
+  private InetSocketAddress[] peers; //addresses of the other replicas
+  //Hash table of the lookup reply of each registered host, replaced as a
+  //whole when a host's registrations change
+  private volatile Lookup[] lookups = new Lookup[1];
   
-  private DatagramSocket serverSocket = null; //socket to receive datagrams
-  InetAddress clientIPAddress; //IP address of client
-  int clientPort; //Port of client
+  private EventLoop loop = null; //loop receiving and dispatching messages
   
   /* Creates a new NameServer Object using the command line arguments.
   **
@@ -45,10 +83,10 @@ public class NameServer {
   ** processing incoming connections and messages.
   **
   ** @param args Command line arguments supplied to constructor and should be a
-  ** single valid port
+  ** single valid port, optionally followed by the ports of the other replicas
   */
   public NameServer(String[] args) {
-    if (args.length != 1) {
+    if (args.length != 1 && args.length != 2) {
       exit_server(BAD_ARGS);  
     }
     
@@ -56,105 +94,271 @@ public class NameServer {
       exit_server(BAD_ARGS);  
     }
     
-    dnsMap = new HashMap<String, DnsEntry>();
+    peers = new InetSocketAddress[0];
+    if (args.length == 2) {
+      int[] peerPorts = ServerMap.parse_ports(args[1]);
+      if (peerPorts == null) {
+        exit_server(BAD_ARGS);
+      }
+      peers = new InetSocketAddress[peerPorts.length];
+      for (int i = 0; i < peerPorts.length; i++) {
+        peers[i] = new InetSocketAddress(ComsFormat.nameserver_ip, 
+            peerPorts[i]);
+      }
+    }
+    
+    dnsMap = new ConcurrentHashMap<String, 
+        ConcurrentHashMap<String, DnsEntry>>();
+    sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Lease sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sweeper.scheduleAtFixedRate(() -> sweep_leases(), 
+        ComsFormat.leaseSweepInterval, ComsFormat.leaseSweepInterval, 
+        TimeUnit.MILLISECONDS);
 	
-	listen();
+    try {
+      loop = new EventLoop(port);
+    } catch (IOException e) {
+      exit_server(SOCKET_FAILURE);
+    }
 	System.err.print("Name Server waiting for incoming requests ...\n");
 	
-	while (true) {
-      try {
-        get_message();
-      } catch (IOException e) {
-        System.err.print("Message Read Failure. Ignoring\n");
-        continue;
-      }
-      
-      process_message();
+    loop.add_handler(REGISTRATION_KEYWORD, request -> register(request));
+    loop.add_handler(LOOKUP_KEYWORD, request -> lookup(request));
+    loop.add_handler(MULTI_LOOKUP_KEYWORD, request -> lookup_all(request));
+    loop.add_handler(ComsFormat.sync, request -> merge(request));
+    if (peers.length > 0) {
+      sweeper.scheduleAtFixedRate(() -> send_sync(), 
+          ComsFormat.syncInterval, ComsFormat.syncInterval, 
+          TimeUnit.MILLISECONDS);
     }
+    loop.run();
   }
   
-  /*  Create a new datagram socket from which to receive datagrams from clients.
+  /* Store the given registration details for a remote process so that they can 
+  ** be available to retrieve when required, or renew the lease of a process 
+  ** already registered. Basic checks of the IP and Port are
+  ** conducted to check that they are valid. If the registration is successful
+  ** a message is sent to the registering processes informing it of its success.
+  **
+  ** @param request The registration request from a remote process containing
+  ** the registration details of the process (hostname, port, IP)
   */
-  private void listen() {
-    try {
-      serverSocket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      exit_server(SOCKET_FAILURE);
+  private void register(Request request) {
+    int port;
+    String hostname;
+    String ipAddress;
+    
+    if (request.field_count() != 3) {
+      return;
     }
     
+    if ((port = check_valid_port(request.get_string(1))) < 0) {
+      return;
+    }
+    if (!check_valid_ip(request.get_string(2)) 
+        || !check_valid_hostname(request.get_string(0))) {
+      return;
+    }
+    hostname = request.get_string(0);
+    ipAddress = request.get_string(2);
+    
+    dnsMap.compute(hostname, (name, instances) -> {
+      if (instances == null) {
+        instances = new ConcurrentHashMap<String, DnsEntry>();
+      }
+      String instance = ipAddress + " " + port;
+      DnsEntry dnsEntry = instances.get(instance);
+      if (dnsEntry != null) {
+        dnsEntry.renew(ComsFormat.leaseTime);
+      } else {
+        instances.put(instance, 
+            new DnsEntry(name, ipAddress, port, ComsFormat.leaseTime));
+        System.out.println(REGISTRATION_SUCCESS);
+      }
+      return instances;
+    });
+    update_lookup(hostname);
+    
+    request.reply(REGISTRATION_SUCCESS);
   }
   
-  /* Read in a datagram from a client. Exctract IP, Port and message.
+  /* Remove every registration whose lease has run out, and every hostname
+  ** left with no instances.
   */
-  private void get_message() throws IOException {
-    byte[] receiveData = new byte[1024];
-    int dataLength = receiveData.length;
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, dataLength); 
-       
-    serverSocket.receive(receivePacket);         
+  private void sweep_leases() {
+    long now = System.currentTimeMillis();
+    for (String hostname : dnsMap.keySet()) {
+      boolean[] expired = {false};
+      dnsMap.computeIfPresent(hostname, (name, instances) -> {
+        instances.values().removeIf(dnsEntry -> {
+          if (!dnsEntry.is_expired(now)) {
+            return false;
+          }
+          System.out.println("Lease expired: " + dnsEntry.get_hostName() 
+              + " " + dnsEntry.get_ipaddress() + " " + dnsEntry.get_port());
+          expired[0] = true;
+          return true;
+        });
+        return instances.isEmpty() ? null : instances;
+      });
+      if (expired[0]) {
+        update_lookup(hostname);
+      }
+    }
+  }
+  
+  /* Return the lookup reply of a host, which is the IP address and port of
+  ** every instance of the host whose lease hasn't run out, separated by 
+  ** spaces.
+  **
+  ** @param hostname the hostname to look up
+  ** @param now the current time in milliseconds
+  ** @return the lookup reply of the host, null if it has no instances
+  */
+  private Lookup find_instances(String hostname, long now) {
+    ConcurrentHashMap<String, DnsEntry> instances = dnsMap.get(hostname);
+    if (instances == null) {
+      return null;
+    }
     
-    String line = new String(receivePacket.getData());
-    line = line.trim();
-    System.out.println("Message from Client: " + line);
-    clientIPAddress = receivePacket.getAddress();
-    clientPort = receivePacket.getPort();
+    StringBuilder found = new StringBuilder();
+    long expires = Long.MAX_VALUE;
+    for (DnsEntry dnsEntry : instances.values()) {
+      if (dnsEntry.is_expired(now)) {
+        continue;
+      }
+      if (found.length() > 0) {
+        found.append(" ");
+      }
+      found.append(dnsEntry.get_ipaddress()).append(" ")
+          .append(dnsEntry.get_port());
+      expires = Math.min(expires, dnsEntry.get_expires());
+    }
+    return found.length() > 0 ? new Lookup(hostname, found.toString(), 
+        expires) : null;
+  }
+  
+  /* Rebuild the lookup reply of a host after its registrations change, and
+  ** replace the table of lookup replies with one holding it.
+  **
+  ** @param hostname the host whose registrations changed
+  */
+  private synchronized void update_lookup(String hostname) {
+    Lookup updated = find_instances(hostname, System.currentTimeMillis());
+    ArrayList<Lookup> all = new ArrayList<Lookup>();
+    for (Lookup lookup : lookups) {
+      if (lookup != null && !lookup.hostname.equals(hostname)) {
+        all.add(lookup);
+      }
+    }
+    if (updated != null) {
+      all.add(updated);
+    }
     
-    message = line;
-
+    Lookup[] table = new Lookup[Integer.highestOneBit(
+        Math.max(all.size(), 1) * 2 - 1) << 1];
+    for (Lookup lookup : all) {
+      int slot = lookup.hash & (table.length - 1);
+      while (table[slot] != null) {
+        slot = (slot + 1) & (table.length - 1);
+      }
+      table[slot] = lookup;
+    }
+    lookups = table;
   }
   
+  /* Send every registration that hasn't expired to the other replicas, 
+  ** split over as many sync messages as are needed to keep each one within
+  ** a datagram.
+  */
+  private void send_sync() {
+    long now = System.currentTimeMillis();
+    StringBuilder message = new StringBuilder(ComsFormat.sync);
+    
+    for (ConcurrentHashMap<String, DnsEntry> instances : dnsMap.values()) {
+      for (DnsEntry dnsEntry : instances.values()) {
+        long lease = dnsEntry.get_expires() - now;
+        if (lease <= 0) {
+          continue;
+        }
+        String entry = " " + dnsEntry.get_hostName() + " " 
+            + dnsEntry.get_ipaddress() + " " + dnsEntry.get_port() + " " 
+            + lease;
+        if (message.length() + entry.length() > ComsFormat.mtu) {
+          send_to_peers(message.toString());
+          message.setLength(ComsFormat.sync.length());
+        }
+        message.append(entry);
+      }
+    }
+    if (message.length() > ComsFormat.sync.length()) {
+      send_to_peers(message.toString());
+    }
+  }
   
-  /* Process the message received from remote process. The message is checked to
-  ** see if it is a Registration or a Lookup query. If it is neither the message
-  ** is ignored. A registration query causes the information supplied to be 
-  ** registered, a lookup query looks up the information and then replies to 
-  ** the remote processes with the appropriate information.
+  /* Send a message to every other replica.
+  **
+  ** @param message the message to send
   */
-  private void process_message () {
-    String[] messageParts = message.split(" ");
-      
-    if (messageParts[0].equals(REGISTRATION_KEYWORD) 
-        && messageParts.length == 4) {
-      register(messageParts);      
-    } else if (messageParts[0].equals(LOOKUP_KEYWORD) 
-        && messageParts.length == 2) {
-      String reply = lookup(messageParts);
-      reply(reply);
-    } else {
-      
-      return;
+  private void send_to_peers(String message) {
+    for (InetSocketAddress peer : peers) {
+      loop.send(message, peer);
     }
   }
   
-  /* Store the given registration details for a remote process so that they can 
-  ** be available to retrieve when required. Basic checks of the IP and Port are
-  ** conducted to check that they are valid. If the registration is successful
-  ** a message is sent to the registering processes informing it of its success.
+  /* Merge the registrations in a sync message from another replica into this
+  ** replica's registrations. A registration is taken if this replica doesn't
+  ** hold the instance or holds it with a shorter lease left. Sync messages
+  ** from processes that aren't replicas are ignored.
   **
-  ** @param registrationDetails A string containing the registration details of
-  ** a remote processes (hostname, port, IP)
+  ** @param request The sync message from another replica
   */
-  private void register(String[] registrationDetails) {
-    int port;
-    String hostname;
-    String ipAddress;
-    
-    if ((port = check_valid_port(registrationDetails[2])) < 0) {
-      return;
+  private void merge(Request request) {
+    boolean fromPeer = false;
+    for (InetSocketAddress peer : peers) {
+      if (peer.getPort() == request.get_client().getPort()) {
+        fromPeer = true;
+      }
     }
-    if (!check_valid_ip(registrationDetails[3]) 
-        || !check_valid_hostname(registrationDetails[1])) {
+    if (!fromPeer || request.field_count() % SYNC_ENTRY_PARTS != 0) {
       return;
     }
-    hostname = registrationDetails[1];
-    ipAddress = registrationDetails[3];
-    
-    DnsEntry dnsEntry = new DnsEntry(hostname, ipAddress, port);
-    
-    dnsMap.put(dnsEntry.get_hostName(), dnsEntry);
-    System.out.println(REGISTRATION_SUCCESS);
     
-    reply(REGISTRATION_SUCCESS);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < request.field_count(); i += SYNC_ENTRY_PARTS) {
+      String hostname = request.get_string(i);
+      String ipAddress = request.get_string(i + 1);
+      int port = check_valid_port(request.get_string(i + 2));
+      long expires;
+      try {
+        expires = now + Math.min(request.get_long(i + 3), 
+            ComsFormat.leaseTime);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (port < 0 || !check_valid_ip(ipAddress)) {
+        continue;
+      }
+      
+      dnsMap.compute(hostname, (name, instances) -> {
+        if (instances == null) {
+          instances = new ConcurrentHashMap<String, DnsEntry>();
+        }
+        String instance = ipAddress + " " + port;
+        DnsEntry dnsEntry = instances.get(instance);
+        if (dnsEntry == null) {
+          instances.put(instance, 
+              new DnsEntry(name, ipAddress, port, expires - now));
+        } else if (dnsEntry.get_expires() < expires) {
+          dnsEntry.renew(expires - now);
+        }
+        return instances;
+      });
+      update_lookup(hostname);
+    }
   }
   
   /* A very basic check of a supplied hostname to check that it's a non-null,
@@ -232,44 +436,71 @@ public class NameServer {
   }
   
   /* Looks up the supplied hostname for a remote process, retrieves the IP 
-  ** address and port and formats message into appropriate response format.
+  ** address and port of each of its instances and replies to the remote 
+  ** process in the appropriate response format. An instance whose lease has
+  ** run out is treated as not registered. Messages that are not a valid lookup
+  ** are ignored.
   **
-  ** @param messageParts The lookup message from the host divided into words
-  ** @return A formatted lookup reply string.
+  ** @param request The lookup request from the remote process
   */
-  private String lookup(String[] messageParts) {
-    String message;
-    DnsEntry dnsEntry = dnsMap.get(messageParts[1]);
+  private void lookup(Request request) {
+    Lookup found;
+    
+    if (request.field_count() != 1) {
+      return;
+    }
+    
+    long now = System.currentTimeMillis();
+    Lookup[] table = lookups;
+    int hash = request.string_hash(0);
+    for (int slot = hash & (table.length - 1); table[slot] != null; 
+        slot = (slot + 1) & (table.length - 1)) {
+      found = table[slot];
+      if (found.hash == hash && request.string_equals(0, found.name)) {
+        if (now < found.expires) {
+          request.reply(found.reply);
+          return;
+        }
+        break;
+      }
+    }
     
-    if (dnsEntry == null) {
-      message = "Error: Process has not registered with the Name Server";
-    } else {
-      message = dnsEntry.get_ipaddress() + " " + dnsEntry.get_port();
+    found = find_instances(request.get_string(0), now);
+    
+    if (found == null) {
+      request.reply("Error: Process has not registered with the Name "
+          + "Server");
+      return;
     }
     
-    return message;
+    request.reply(found.reply);
   }
   
-  /* Sends a lookup reply message to a remote process if possible. Otherwise 
-  ** prints an error and returns.
+  /* Looks up every hostname in a multi-host lookup request and replies with
+  ** one line per hostname, in the order they were requested. Each line is the
+  ** IP address and port of each instance of the host, or a not found marker if
+  ** the host isn't registered. Messages that are not a valid lookup are
+  ** ignored.
   **
-  ** @param reply the message to reply with
+  ** @param request The lookup request from the remote process
   */
-  private void reply(String reply) {
-    byte[] sendData = new byte[1024];
-    sendData = reply.getBytes();
-        
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, 
-        clientIPAddress, clientPort);
+  private void lookup_all(Request request) {
+    StringBuilder message = new StringBuilder();
+    long now = System.currentTimeMillis();
     
-    try {
-      serverSocket.send(sendPacket);
-      System.out.println("Message to client: " + reply);
-    } catch (IOException e) {
-      System.err.println("Unable to send reply");
+    if (request.field_count() < 1) {
       return;
     }
     
+    for (int i = 0; i < request.field_count(); i++) {
+      Lookup instances = find_instances(request.get_string(i), now);
+      if (i > 0) {
+        message.append(ComsFormat.newline);
+      }
+      message.append(instances == null ? NOT_FOUND : instances.reply);
+    }
+    
+    request.reply(message.toString());
   }
   
   /* Exit the name server with the appropriate error message and status.
@@ -277,9 +508,6 @@ public class NameServer {
   ** @param status the exit status to exit with
   */
   private void exit_server(int status) {
-    if (serverSocket != null) {
-      serverSocket.close();
-    }
     switch (status) {
       case BAD_ARGS: 
         System.err.print("Invalid command line arguments for "
@@ -294,15 +522,35 @@ public class NameServer {
         System.exit(RECIEVE_FAILURE);
     }
   }
+  
+  /* The reply to a lookup of a host and the time the first lease it holds
+  ** runs out, after which it is out of date.
+  */
+  private static class Lookup {
+    private final String hostname; //the host looked up
+    private final byte[] name; //the hostname encoded in UTF-8
+    private final int hash; //WireCodec.hash of the encoded hostname
+    private final String reply; //the instances of the host
+    private final long expires; //time the first lease runs out in ms
+    
+    private Lookup(String hostname, String reply, long expires) {
+      this.hostname = hostname;
+      this.name = hostname.getBytes(StandardCharsets.UTF_8);
+      this.hash = WireCodec.hash(ByteBuffer.wrap(name), 0, name.length);
+      this.reply = reply;
+      this.expires = expires;
+    }
+  }
 }
 
 /* A class used to store the hostname, ipAddres and port of a remote process 
-** that has registered with the nameserver.
+** that has registered with the nameserver, and the time its lease runs out.
 */
 class DnsEntry {
   private String hostName;
   private String ipAddress;
   private int port;
+  private volatile long expires; //time the lease runs out in milliseconds
   
   /* Creates a new DNS entry storing the hostname, ipAddress and port of a 
   ** remote process
@@ -310,11 +558,38 @@ class DnsEntry {
   ** @param hostname the process's hostname
   ** @param ipAddreess the process's IP address
   ** @param port the process's port
+  ** @param lease the time the registration lasts in milliseconds
   */
-  public DnsEntry(String hostname, String ipAdddress, int port) {
+  public DnsEntry(String hostname, String ipAdddress, int port, long lease) {
     this.hostName = hostname;
     this.ipAddress = ipAdddress;
     this.port = port;
+    renew(lease);
+  }
+  
+  /* Extend the lease of the registration to the given time from now.
+  **
+  ** @param lease the time the registration lasts in milliseconds
+  */
+  public void renew(long lease) {
+    this.expires = System.currentTimeMillis() + lease;
+  }
+  
+  /* Returns the time the lease of the registration runs out.
+  ** 
+  ** @return the time the lease runs out in milliseconds
+  */
+  public long get_expires() {
+    return this.expires;
+  }
+  
+  /* Returns whether the lease of the registration has run out.
+  **
+  ** @param now the current time in milliseconds
+  ** @return true if the lease has run out
+  */
+  public boolean is_expired(long now) {
+    return now >= expires;
   }
   
   /* Returns the IP address of the remote process.
@@ -0,0 +1,176 @@
+package drmudp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/* Measures the latency of Stock.get_price while the stock file is reloaded.
+** A reader thread looks up random items in a loop, timing each lookup, while
+** the stock file is rewritten with new prices a number of times and reloaded
+** by a FileWatcher, as a Store does. Each lookup is counted as made during a
+** reload if it was made between the start of a rewrite and the new stock
+** being swapped in, and as quiet otherwise.
+**
+** The benchmark takes two optional arguments, the number of items in the
+** stock, 1000000 if it isn't given, and the number of reloads, 5 if it isn't
+** given:
+**
+**   java drmudp.ReloadBenchmark [items] [reloads]
+**
+** The percentiles and maximum of the lookup times are printed for the quiet
+** and reloading lookups. Times are kept in buckets of BUCKET ns, so the
+** percentiles are rounded up to a bucket, and include the time taken to
+** read the clock.
+*/
+class ReloadBenchmark {
+  private static final int BUCKET = 10; //width of a time bucket in ns
+  private static final int BUCKETS = 100000; //buckets, the last for the rest
+  private static final long QUIET = 1000; //time in ms between reloads
+  private static final String[] PERCENTILES = {"50", "90", "99", "99.9",
+      "99.99"};
+
+  private static volatile Stock stock; //the stock being looked up
+  private static volatile boolean reloading = false; //reload in progress
+  private static volatile long reloads = 0; //number of reloads done
+  private static volatile boolean running = true; //reader keeps reading
+
+  /* Run the benchmark.
+  **
+  ** @param args the number of items and the number of reloads
+  */
+  public static void main(String[] args) throws Exception {
+    int items = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    Path directory = Files.createTempDirectory("reload");
+    try {
+      Path file = directory.resolve("stock.txt");
+      write_stock(file, items, 0);
+      stock = new Stock(file);
+      FileWatcher watcher = new FileWatcher(file, changed -> {
+        try {
+          stock = new Stock(changed);
+        } finally {
+          reloads++;
+          reloading = false;
+        }
+      });
+      watcher.start();
+
+      Times quiet = new Times();
+      Times reload = new Times();
+      Thread reader = new Thread(() -> read(items, quiet, reload),
+          "Reader");
+      reader.start();
+
+      for (int round = 1; round <= rounds; round++) {
+        Thread.sleep(QUIET);
+        long done = reloads;
+        reloading = true;
+        write_stock(file, items, round);
+        while (reloads == done) {
+          Thread.sleep(1);
+        }
+      }
+      Thread.sleep(QUIET);
+      running = false;
+      reader.join();
+
+      quiet.print("quiet");
+      reload.print("reloading");
+    } finally {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file ->
+            file.toFile().delete());
+      }
+    }
+  }
+
+  /* Look up random items until the benchmark ends, adding the time of each
+  ** lookup to the quiet or reloading times.
+  **
+  ** @param items the number of items in the stock
+  ** @param quiet the times of lookups made while not reloading
+  ** @param reload the times of lookups made while reloading
+  */
+  private static void read(int items, Times quiet, Times reload) {
+    Random random = new Random(1);
+    float total = 0; //kept so the lookups aren't optimised away
+    while (running) {
+      long itemId = random.nextInt(items) + 1;
+      boolean during = reloading;
+      long start = System.nanoTime();
+      total += stock.get_price(itemId);
+      long time = System.nanoTime() - start;
+      (during || reloading ? reload : quiet).add(time);
+    }
+    if (total == 0) {
+      System.out.println("No prices found");
+    }
+  }
+
+  /* Write a stock file with items 1 to a number, replacing the file in one
+  ** move so it is never read half written.
+  **
+  ** @param file the stock file
+  ** @param items the number of items
+  ** @param round the number of the rewrite, which sets the prices
+  */
+  private static void write_stock(Path file, int items, int round)
+      throws IOException {
+    Path written = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(written)) {
+      for (int i = 1; i <= items; i++) {
+        writer.write(i + " " + (i % 1000 + round) + ".5\n");
+      }
+    }
+    Files.move(written, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /* The times of a set of lookups, counted in buckets of BUCKET ns.
+  */
+  private static class Times {
+    private long[] buckets = new long[BUCKETS]; //lookups in each bucket
+    private long count = 0; //number of lookups
+    private long max = 0; //longest time in ns
+
+    /* Add the time of a lookup.
+    **
+    ** @param time the time in ns
+    */
+    private void add(long time) {
+      buckets[(int) Math.min(BUCKETS - 1, time / BUCKET)]++;
+      count++;
+      max = Math.max(max, time);
+    }
+
+    /* Print the percentiles and maximum of the times.
+    **
+    ** @param name the name of the lookups
+    */
+    private void print(String name) {
+      StringBuilder line = new StringBuilder(String.format(
+          "%-9s %10d lookups", name, count));
+      for (String percentile : PERCENTILES) {
+        long needed = (long) Math.ceil(count 
+            * Double.parseDouble(percentile) / 100);
+        long seen = 0;
+        int i = 0;
+        while (i < BUCKETS - 1 && seen + buckets[i] < needed) {
+          seen += buckets[i];
+          i++;
+        }
+        line.append(String.format(", p%s %d ns", percentile,
+            Math.min((i + 1) * BUCKET, max)));
+      }
+      line.append(String.format(", max %d ns", max));
+      System.out.println(line);
+    }
+  }
+}
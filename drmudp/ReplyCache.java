@@ -0,0 +1,179 @@
+package drmudp;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/* A cache of the replies a server has sent, keyed by the address of the
+** client and the ID of the request. It is used to give at most once execution
+** of requests: a retransmitted request is answered with the cached reply, or
+** dropped if the original is still being processed, instead of being executed
+** again. The cache holds at most a fixed number of entries and entries expire
+** after a fixed time. A reply is either a String or, for a reply built once
+** and sent to many requests, the Fragments it is sent as.
+**
+** Entries are kept in preallocated arrays used as a ring, so the oldest entry
+** is the one overwritten, and are found through a chained hash index of
+** array positions. Adding and finding entries allocates nothing.
+*/
+class ReplyCache {
+  private int maxEntries; //the most entries the cache will hold
+  private long timeToLive; //time in ms an entry is kept for
+
+  private int[] heads; //first entry in each hash chain, -1 if none
+  private int[] chain; //next entry in the same hash chain, -1 if none
+  private int[] bucket; //hash chain each entry is in, -1 if unused
+  private InetSocketAddress[] clients; //client that sent each request
+  private long[] requestIds; //ID of each request
+  private Object[] replies; //reply to each request, null while processing
+  private long[] created; //time in ms each request was first received
+  private int oldest = 0; //next entry of the ring to overwrite
+
+  /* Create a new empty reply cache.
+  **
+  ** @param maxEntries the most entries the cache will hold
+  ** @param timeToLive the time in ms an entry is kept for
+  */
+  public ReplyCache(int maxEntries, long timeToLive) {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+
+    int tableSize = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+    heads = new int[tableSize];
+    Arrays.fill(heads, -1);
+    chain = new int[maxEntries];
+    bucket = new int[maxEntries];
+    Arrays.fill(bucket, -1);
+    clients = new InetSocketAddress[maxEntries];
+    requestIds = new long[maxEntries];
+    replies = new Object[maxEntries];
+    created = new long[maxEntries];
+  }
+
+  /* Check whether a request has been seen before. If it has not it is marked
+  ** as being processed so later retransmissions of it are recognised.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @return null if the request is new, an empty string if the request is
+  ** still being processed, otherwise the reply sent to the request
+  */
+  public synchronized Object check(InetSocketAddress client, long requestId) {
+    long now = System.currentTimeMillis();
+    int entry = find(client, requestId, now);
+    if (entry >= 0) {
+      return replies[entry] == null ? "" : replies[entry];
+    }
+
+    entry = oldest;
+    oldest = (oldest + 1) % maxEntries;
+    if (bucket[entry] >= 0) {
+      unlink(entry);
+    }
+    int b = hash(client, requestId);
+    clients[entry] = client;
+    requestIds[entry] = requestId;
+    replies[entry] = null;
+    created[entry] = now;
+    bucket[entry] = b;
+    chain[entry] = heads[b];
+    heads[b] = entry;
+    return null;
+  }
+
+  /* Return the reply sent to a request without marking the request as seen.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @return the reply sent to the request, null if there is none
+  */
+  public synchronized Object get(InetSocketAddress client, long requestId) {
+    int entry = find(client, requestId, System.currentTimeMillis());
+    return entry < 0 ? null : replies[entry];
+  }
+
+  /* Store the reply sent to a request.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @param reply the reply sent to the request
+  */
+  public synchronized void put(InetSocketAddress client, long requestId,
+      Object reply) {
+    int entry = find(client, requestId, System.currentTimeMillis());
+    if (entry >= 0) {
+      replies[entry] = reply;
+    }
+  }
+
+  /* Find the entry for a request that has not expired.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @param now the current time in ms
+  ** @return the position of the entry, -1 if there is none
+  */
+  private int find(InetSocketAddress client, long requestId, long now) {
+    for (int entry = heads[hash(client, requestId)]; entry >= 0;
+        entry = chain[entry]) {
+      if (requestIds[entry] == requestId && clients[entry].equals(client)) {
+        return now - created[entry] < timeToLive ? entry : -1;
+      }
+    }
+    return -1;
+  }
+
+  /* Remove an entry from its hash chain.
+  **
+  ** @param entry the position of the entry
+  */
+  private void unlink(int entry) {
+    int b = bucket[entry];
+    if (heads[b] == entry) {
+      heads[b] = chain[entry];
+    } else {
+      int previous = heads[b];
+      while (chain[previous] != entry) {
+        previous = chain[previous];
+      }
+      chain[previous] = chain[entry];
+    }
+    bucket[entry] = -1;
+    clients[entry] = null;
+    replies[entry] = null;
+  }
+
+  /* Return the hash chain a request belongs in.
+  **
+  ** @param client the address of the client that sent the request
+  ** @param requestId the ID of the request
+  ** @return the index of the hash chain
+  */
+  private int hash(InetSocketAddress client, long requestId) {
+    int hash = client.hashCode() * 31 + Long.hashCode(requestId);
+    return (hash ^ (hash >>> 16)) & (heads.length - 1);
+  }
+
+  /* The address of a client and the ID of one of its requests.
+  */
+  static class Key {
+    private InetSocketAddress client;
+    private long requestId;
+
+    public Key(InetSocketAddress client, long requestId) {
+      this.client = client;
+      this.requestId = requestId;
+    }
+
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return requestId == key.requestId && client.equals(key.client);
+    }
+
+    public int hashCode() {
+      return client.hashCode() * 31 + Long.hashCode(requestId);
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package drmudp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* A class used to store the context of a single message received from a
+** remote process so that it can be processed independently of any other
+** message (the message itself, the address to reply to and the event loop it
+** was received on).
+**
+** A message is either text or binary (see WireCodec). Handlers read the
+** fields that follow the opcode through the typed get methods, which parse
+** the words of a text message or read the values of a binary message in
+** place. A get method throws a NumberFormatException if the field is not of
+** the type asked for.
+*/
+class Request {
+  private long requestId = -1; //ID of the request, -1 if it has none
+  private String message; //message read from remote client process
+  private String[] messageParts; //message broken into an array of words
+  private int fieldStart = 1; //index of the first field in messageParts
+  private InetSocketAddress client; //IP address and port of client
+  private EventLoop loop; //event loop used to reply to the client
+
+  private ByteBuffer binary = null; //the binary message, null if text
+  private String opcode; //the opcode of a binary message
+  private int fieldCount; //the number of fields in a binary message
+  private int[] offsets; //the position of each binary field's value
+  private byte[] types; //the type of each binary field
+
+  /* Create a new Request from a received text message and the address it was
+  ** sent from. If the message starts with a request ID the ID is removed from
+  ** the message and echoed in the reply.
+  **
+  ** @param message the message received from the remote process
+  ** @param client the IP address and port of the remote process
+  ** @param loop the event loop the message was received on
+  */
+  public Request(String message, InetSocketAddress client, EventLoop loop) {
+    if (message.startsWith(ComsFormat.requestIdTag)) {
+      int end = message.indexOf(ComsFormat.separator);
+      if (end < 0) {
+        end = message.length();
+      }
+      try {
+        requestId = Long.parseLong(message.substring(
+            ComsFormat.requestIdTag.length(), end));
+        message = message.substring(end).trim();
+      } catch (NumberFormatException e) {
+        requestId = -1;
+      }
+    }
+    this.message = message;
+    this.messageParts = message.split(ComsFormat.separator);
+    this.client = client;
+    this.loop = loop;
+  }
+
+  /* Create a new Request to be reused for binary messages received on an
+  ** event loop. The Request holds no message until reset is called.
+  **
+  ** @param loop the event loop the messages are received on
+  ** @param offsets the array the position of each field's value is kept in
+  ** @param types the array the type of each field is kept in
+  */
+  public Request(EventLoop loop, int[] offsets, byte[] types) {
+    this.loop = loop;
+    this.offsets = offsets;
+    this.types = types;
+  }
+
+  /* Make this Request hold a received binary message and the address it was
+  ** sent from. The fields of the message must already have been found with
+  ** WireCodec.decode_fields into the arrays this Request was created with.
+  ** The message is read in place, so the buffer must not be changed while
+  ** the Request is in use.
+  **
+  ** @param binary the message received, positioned at its start
+  ** @param fieldCount the number of fields in the message
+  ** @param client the IP address and port of the remote process
+  */
+  public void reset(ByteBuffer binary, int fieldCount, 
+      InetSocketAddress client) {
+    this.binary = binary;
+    this.fieldCount = fieldCount;
+    this.requestId = WireCodec.get_requestId(binary);
+    this.opcode = WireCodec.decode_opcode(WireCodec.get_opcode(binary));
+    this.message = null;
+    this.messageParts = null;
+    this.fieldStart = 1;
+    this.client = client;
+  }
+
+  /* Return a Request that stays valid after the handler it was passed to
+  ** returns. A binary Request is reused for the next message, so its message
+  ** is copied, a text Request is returned as it is.
+  **
+  ** @return a Request holding the same message
+  */
+  public Request detach() {
+    if (binary == null) {
+      return this;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(binary.limit());
+    copy.put(0, binary, 0, binary.limit());
+    Request request = new Request(loop, offsets.clone(), types.clone());
+    request.reset(copy, fieldCount, client);
+    return request;
+  }
+
+  /* Send a reply to the remote process that sent this request.
+  **
+  ** @param reply the message to reply with
+  */
+  public void reply(String reply) {
+    loop.reply(this, reply);
+  }
+
+  /* Send a reply that has already been split into fragments to the remote 
+  ** process that sent this request.
+  **
+  ** @param reply the message to reply with
+  */
+  public void reply(Fragments reply) {
+    loop.reply(this, reply);
+  }
+
+  /* Treat the whole of a text message as fields, for messages that have no
+  ** opcode.
+  */
+  public void use_whole_message() {
+    fieldStart = 0;
+  }
+
+  /* Return the number of fields that follow the opcode.
+  **
+  ** @return the number of fields
+  */
+  public int field_count() {
+    if (binary != null) {
+      return fieldCount;
+    }
+    return messageParts.length - fieldStart;
+  }
+
+  /* Return a field as a long.
+  **
+  ** @param i the index of the field
+  ** @return the value of the field
+  */
+  public long get_long(int i) {
+    if (binary == null) {
+      return Long.parseLong(messageParts[fieldStart + i]);
+    }
+    if (types[i] == WireCodec.LONG) {
+      return binary.getLong(offsets[i]);
+    }
+    if (types[i] == WireCodec.INT) {
+      return binary.getInt(offsets[i]);
+    }
+    throw new NumberFormatException();
+  }
+
+  /* Return a field as a float.
+  **
+  ** @param i the index of the field
+  ** @return the value of the field
+  */
+  public float get_float(int i) {
+    if (binary == null) {
+      return Float.parseFloat(messageParts[fieldStart + i]);
+    }
+    if (types[i] == WireCodec.FLOAT) {
+      return binary.getFloat(offsets[i]);
+    }
+    throw new NumberFormatException();
+  }
+
+  /* Return a field as an int.
+  **
+  ** @param i the index of the field
+  ** @return the value of the field
+  */
+  public int get_int(int i) {
+    if (binary == null) {
+      return Integer.parseInt(messageParts[fieldStart + i]);
+    }
+    if (types[i] == WireCodec.INT) {
+      return binary.getInt(offsets[i]);
+    }
+    throw new NumberFormatException();
+  }
+
+  /* Return a field as a string. Numeric binary fields are converted to their
+  ** text form.
+  **
+  ** @param i the index of the field
+  ** @return the value of the field
+  */
+  public String get_string(int i) {
+    if (binary == null) {
+      return messageParts[fieldStart + i];
+    }
+    switch (types[i]) {
+      case WireCodec.LONG:
+        return Long.toString(binary.getLong(offsets[i]));
+      case WireCodec.FLOAT:
+        return Float.toString(binary.getFloat(offsets[i]));
+      case WireCodec.INT:
+        return Integer.toString(binary.getInt(offsets[i]));
+      default:
+        int length = binary.getShort(offsets[i]) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        binary.get(offsets[i] + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /* Return whether a field holds the given string, as UTF-8 bytes. A binary
+  ** string field is compared in place without making a String of it.
+  **
+  ** @param i the index of the field
+  ** @param value the UTF-8 bytes of the string
+  ** @return true if the field holds the string
+  */
+  public boolean string_equals(int i, byte[] value) {
+    if (binary == null || types[i] != WireCodec.STRING) {
+      return Arrays.equals(get_string(i).getBytes(StandardCharsets.UTF_8), 
+          value);
+    }
+    int length = binary.getShort(offsets[i]) & 0xFFFF;
+    if (length != value.length) {
+      return false;
+    }
+    for (int j = 0; j < length; j++) {
+      if (binary.get(offsets[i] + 2 + j) != value[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Return the WireCodec.hash of the UTF-8 bytes of a field. A binary string
+  ** field is hashed in place without making a String of it.
+  **
+  ** @param i the index of the field
+  ** @return the hash
+  */
+  public int string_hash(int i) {
+    if (binary == null || types[i] != WireCodec.STRING) {
+      byte[] bytes = get_string(i).getBytes(StandardCharsets.UTF_8);
+      return WireCodec.hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+    return WireCodec.hash(binary, offsets[i] + 2, 
+        binary.getShort(offsets[i]) & 0xFFFF);
+  }
+
+  /* Return whether the request was sent in the binary format.
+  **
+  ** @return true if the request is binary
+  */
+  public boolean is_binary() {
+    return binary != null;
+  }
+
+  /* Return the ID of the request, or -1 if the request has no ID.
+  **
+  ** @return the ID of the request
+  */
+  public long get_requestId() {
+    return this.requestId;
+  }
+
+  /* Return the message received from the remote process. A binary message is
+  ** returned in its text form.
+  **
+  ** @return the message received
+  */
+  public String get_message() {
+    if (message == null) {
+      StringBuilder text = new StringBuilder(opcode);
+      for (int i = 0; i < fieldCount; i++) {
+        text.append(ComsFormat.separator).append(get_string(i));
+      }
+      message = text.toString();
+    }
+    return this.message;
+  }
+
+  /* Return the message received from the remote process broken into words.
+  **
+  ** @return the words of the message received
+  */
+  public String[] get_parts() {
+    if (messageParts == null) {
+      messageParts = get_message().split(ComsFormat.separator);
+    }
+    return this.messageParts;
+  }
+
+  /* Return the opcode of the message, which is the first word of a text
+  ** message.
+  **
+  ** @return the opcode of the message
+  */
+  public String get_opcode() {
+    if (binary != null) {
+      return this.opcode;
+    }
+    return this.messageParts[0];
+  }
+
+  /* Return the IP address and port of the remote process.
+  **
+  ** @return the address of the remote process
+  */
+  public InetSocketAddress get_client() {
+    return this.client;
+  }
+}
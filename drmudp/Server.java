@@ -1,24 +1,70 @@
 package drmudp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* A class used to store information about a remote Server, connect to a remote
 ** server and store information about and tools related to the connection.
+**
+** Each Server keeps a single long lived channel to the remote server. Every
+** message sent carries a request ID which the remote server echoes in its
+** reply, so many requests can be in flight on the one channel at once and a
+** receiver thread matches each reply to the request that is waiting for it.
+**
+** The time to wait for a reply (the retransmission timeout) is worked out from
+** the measured round trip times to the server, using a smoothed round trip
+** time and its variance (in the style of RFC 6298). Each further attempt at a
+** request doubles the timeout and adds some random jitter.
+**
+** Replies too big for one datagram arrive as numbered fragments which are
+** reassembled before the request completes. When a reply is only partly 
+** received the next attempt asks the server to resend just the missing
+** fragments rather than the whole request.
+**
+** Requests are sent in the binary format of WireCodec when 
+** ComsFormat.binaryWire is set, otherwise as text. Replies are accepted in
+** either format.
 */
 class Server {
+  //Timer shared by all servers used to schedule resends and receive timeouts
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Server timer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
   private String host; //hostname of server
   private String ip; //ip address of server
   private int port; // port of server
-  
+
+  private InetSocketAddress address = null; //resolved address of server
+  private DatagramChannel channel = null; //channel used to talk to server
+
+  //Map of request IDs to the requests waiting for a reply
+  private ConcurrentHashMap<Long, PendingRequest> pending;
+  private AtomicLong nextRequestId; //ID of the last request sent
+
+  private double srtt = -1; //smoothed round trip time in ms, -1 if unknown
+  private double rttvar = 0; //round trip time variation in ms
+  private double rto = -1; //retransmission timeout in ms, -1 if unknown
+
   /* Create a new Server object. Store information about the server (host, ip,
-  ** port and then attempt to connect to the server and open streams into and 
-  ** out of the new connection. Store information about these streams.
+  ** port). The connection to the server is opened when the first message is
+  ** sent.
   **
   ** @param host the server hostname
   ** @param ip the server ip
@@ -29,101 +75,527 @@ class Server {
     this.ip = ip;
     this.port = port;
 
+    pending = new ConcurrentHashMap<Long, PendingRequest>();
+    //Start from a random ID so a restarted process doesn't reuse old IDs
+    nextRequestId = new AtomicLong(new Random().nextInt(Integer.MAX_VALUE));
   }
-  
-  /*
+
+  /* Send a message to the server and wait for its reply.
+  **
   ** @param message the message to send
+  ** @param retry the number of times to send the message before giving up
+  ** @param sendTimeout the time to wait before resending a lost packet
+  ** @param receiveTimeout the time to wait for a reply until a round trip 
+  ** time has been measured
+  ** @return the reply from the server
   */
-  public String send_message(String message, int retry, int sendTimeout,
+  public String send_message(Message message, int retry, int sendTimeout,
       int receiveTimeout) throws IOException {
-    byte[] sendData = new byte[1024];
-    byte[] receiveData = new byte[1024];
-    sendData = message.getBytes();
-    String reply = "";
-    DatagramSocket serverSocket = null;
-    InetAddress serverIP = null;
-    boolean sent = false;
-    
     try {
-      serverSocket = new DatagramSocket(); 
-      serverSocket.setSoTimeout(receiveTimeout);
-      serverIP = InetAddress.getLocalHost();
-    } catch (SocketException | UnknownHostException e) {
+      return send_async(message, retry, sendTimeout, receiveTimeout).get();
+    } catch (ExecutionException | InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /* Send a message to the server without waiting for its reply. The returned
+  ** future completes with the reply, or with an IOException if no reply is
+  ** received after all attempts are used.
+  **
+  ** @param message the message to send
+  ** @param retry the number of times to send the message before giving up
+  ** @param sendTimeout the time to wait before resending a lost packet
+  ** @param receiveTimeout the time to wait for a reply until a round trip 
+  ** time has been measured
+  ** @return a future completed with the reply from the server
+  */
+  public CompletableFuture<String> send_async(Message message, int retry,
+      int sendTimeout, int receiveTimeout) {
+    CompletableFuture<String> reply = new CompletableFuture<String>();
+    long requestId = nextRequestId.incrementAndGet();
+    ByteBuffer sendData;
+    if (ComsFormat.binaryWire) {
+      sendData = message.encode_binary(requestId);
+    } else {
+      sendData = message.encode_text(requestId);
+    }
+
+    try {
+      connect();
+    } catch (IOException e) {
       System.out.println(e);
+      reply.completeExceptionally(e);
+      return reply;
     }
-    
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, 
-        receiveData.length);
-    
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
-          serverIP, port);
-    
-    int i = 1;
-    while (i <= retry) {
-      sent = false;
-      while (!sent) {
-        double x = Math.random();
-        if (x < ComsFormat.packetLossProb) {
-          try { 
-            Thread.sleep(sendTimeout);
-          } catch (InterruptedException e) {}
-          System.out.println("Packet sent to " + host + " lost. Retrying...");
-        } else {
-          serverSocket.send(sendPacket);
-          sent = true;
-          break;
-        }
-      }
+
+    pending.put(requestId, new PendingRequest(reply));
+    attempt(requestId, sendData, 1, retry, sendTimeout, receiveTimeout);
+    return reply;
+  }
+
+  /* Make one attempt to send a request to the server. Lost packets are resent
+  ** after sendTimeout. If no reply is received within the retransmission 
+  ** timeout another attempt is made until retry attempts have been made.
+  **
+  ** @param requestId the ID of the request
+  ** @param sendData the request to send
+  ** @param i the number of this attempt
+  ** @param retry the number of times to send the message before giving up
+  ** @param sendTimeout the time to wait before resending a lost packet
+  ** @param receiveTimeout the time to wait for a reply until a round trip 
+  ** time has been measured
+  */
+  private void attempt(long requestId, ByteBuffer sendData, int i, int retry,
+      int sendTimeout, int receiveTimeout) {
+    PendingRequest request = pending.get(requestId);
+    if (request == null || request.reply.isDone()) {
+      return;
+    }
+
+    double x = Math.random();
+    if (x < ComsFormat.packetLossProb) {
+      System.out.println("Packet sent to " + host + " lost. Retrying...");
+      timer.schedule(() -> attempt(requestId, sendData, i, retry, sendTimeout,
+          receiveTimeout), sendTimeout, TimeUnit.MILLISECONDS);
+      return;
+    }
+
+    //Ask only for the missing fragments once part of the reply has arrived
+    ByteBuffer data = request.resend_request(requestId);
+    if (data == null) {
+      data = sendData.duplicate();
+    }
+
+    request.sentAt = System.nanoTime();
+    request.attempts = i;
+    try {
+      channel.send(data, address);
+    } catch (IOException e) {
+      System.out.println(e);
+    }
+    if (ComsFormat.verbose) {
       System.out.println("Message sent successfully");
       System.out.println("Message recieve attempt " + i + " of " + retry);
+    }
+
+    await_reply(requestId, request, sendData, i, retry, sendTimeout, 
+        receiveTimeout, request.get_received());
+  }
+
+  /* Wait for the retransmission timeout for a reply to an attempt at a 
+  ** request. If there is no reply by then another attempt is made, or the 
+  ** request fails if it has used all its attempts. While fragments of the
+  ** reply keep arriving the timeout is restarted without using an attempt.
+  **
+  ** @param requestId the ID of the request
+  ** @param request the request waiting for a reply
+  ** @param sendData the request to send
+  ** @param i the number of this attempt
+  ** @param retry the number of times to send the message before giving up
+  ** @param sendTimeout the time to wait before resending a lost packet
+  ** @param receiveTimeout the time to wait for a reply until a round trip 
+  ** time has been measured
+  ** @param received the number of fragments received when the wait started
+  */
+  private void await_reply(long requestId, PendingRequest request, 
+      ByteBuffer sendData, int i, int retry, int sendTimeout, 
+      int receiveTimeout, int received) {
+    timer.schedule(() -> {
+      if (request.reply.isDone()) {
+        return;
+      }
+      if (request.get_received() > received) {
+        await_reply(requestId, request, sendData, i, retry, sendTimeout, 
+            receiveTimeout, request.get_received());
+        return;
+      }
+      if (i >= retry) {
+        System.out.println("Timed out on recieve. "
+            + "Receive attempt failed completly.");
+        pending.remove(requestId);
+        request.reply.completeExceptionally(new IOException());
+        return;
+      }
+      System.out.println("Timed out on recieve. "
+          + "Attempting resend of request.");
+      attempt(requestId, sendData, i + 1, retry, sendTimeout, receiveTimeout);
+    }, timeout(i, receiveTimeout), TimeUnit.MILLISECONDS);
+  }
+
+  /* Return the time to wait for a reply to the given attempt at a request. The
+  ** first attempt waits for the retransmission timeout, each later attempt 
+  ** waits twice as long as the one before. Random jitter is added so requests
+  ** that timed out together are not all resent together.
+  **
+  ** @param i the number of the attempt
+  ** @param receiveTimeout the timeout to use if no round trip time has been
+  ** measured yet
+  ** @return the time to wait for a reply in ms
+  */
+  private long timeout(int i, int receiveTimeout) {
+    double timeout;
+    synchronized (this) {
+      timeout = rto < 0 ? receiveTimeout : rto;
+    }
+    timeout = timeout * (1L << Math.min(i - 1, 16));
+    timeout = timeout * (1 + Math.random() * ComsFormat.rtoJitter);
+    return (long) Math.min(timeout, ComsFormat.maxRto);
+  }
+
+  /* Update the smoothed round trip time, its variation and the retransmission
+  ** timeout with a new round trip time measurement.
+  **
+  ** @param rtt the measured round trip time in ms
+  */
+  private synchronized void update_rto(double rtt) {
+    if (srtt < 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+      srtt = 0.875 * srtt + 0.125 * rtt;
+    }
+    rto = Math.max(ComsFormat.minRto, Math.min(ComsFormat.maxRto, 
+        srtt + 4 * rttvar));
+  }
+
+  /* Open the channel used to talk to the server and start the thread that
+  ** receives replies on it, if this hasn't already been done.
+  */
+  private synchronized void connect() throws IOException {
+    if (channel != null) {
+      return;
+    }
+    address = new InetSocketAddress(ip, port);
+    channel = DatagramChannel.open();
+    channel.bind(null);
+
+    Thread receiver = new Thread(() -> receive_replies(), host + " receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /* Receive replies from the server and complete the request each one belongs
+  ** to. Fragments are held until every fragment of the reply has arrived. 
+  ** Replies to requests that are no longer waiting are ignored.
+  */
+  private void receive_replies() {
+    ByteBuffer receiveData = ByteBuffer.allocate(ComsFormat.mtu);
+    while (true) {
+      receiveData.clear();
       try {
-        serverSocket.receive(receivePacket);
-        break;
-      }catch (SocketTimeoutException  e) {
-        i++;
-        if (i > retry) {
-          System.out.println("Timed out on recieve. "
-              + "Receive attempt failed completly.");
-          throw new IOException();
+        channel.receive(receiveData);
+      } catch (IOException e) {
+        if (channel.isOpen()) {
+          System.out.println(e);
         }
-        System.out.println("Timed out on recieve. "
-            + "Attempting resend of request.");
-      } 
+        return;
+      }
+      receiveData.flip();
+      if (WireCodec.is_binary(receiveData)) {
+        receive_binary_reply(receiveData);
+        continue;
+      }
+      byte[] data = receiveData.array();
+      int length = receiveData.limit();
+      //Read the header one byte per char so offsets match the payload bytes
+      String line = new String(data, 0, length, StandardCharsets.ISO_8859_1);
+
+      if (!line.startsWith(ComsFormat.requestIdTag)) {
+        continue;
+      }
+      int end = line.indexOf(ComsFormat.separator);
+      if (end < 0) {
+        end = line.length();
+      }
+      long requestId;
+      try {
+        requestId = Long.parseLong(line.substring(
+            ComsFormat.requestIdTag.length(), end));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+
+      PendingRequest request = pending.get(requestId);
+      if (request == null) {
+        continue;
+      }
+
+      String reply;
+      String fragmentTag = ComsFormat.separator + ComsFormat.fragment 
+          + ComsFormat.separator;
+      if (line.startsWith(fragmentTag, end)) {
+        byte[] payload = add_fragment(requestId, request, line, data, 
+            end + fragmentTag.length());
+        if (payload == null) {
+          continue;
+        }
+        reply = new String(payload, StandardCharsets.UTF_8).trim();
+      } else {
+        reply = new String(data, end, length - end, 
+            StandardCharsets.UTF_8).trim();
+      }
+
+      if (pending.remove(requestId) == null) {
+        continue;
+      }
+      if (ComsFormat.verbose) {
+        System.out.println("Message recieved successfully.");
+      }
+      //Only requests sent once give an unambiguous round trip time
+      if (request.attempts == 1) {
+        update_rto((System.nanoTime() - request.sentAt) / 1e6);
+      }
+      request.reply.complete(reply);
+    }
+  }
+
+  /* Complete the request a binary reply belongs to. The reply is the string
+  ** held in the first field of the message.
+  **
+  ** @param receiveData the reply received
+  */
+  private void receive_binary_reply(ByteBuffer receiveData) {
+    int[] offsets = new int[WireCodec.MAX_FIELDS];
+    byte[] types = new byte[WireCodec.MAX_FIELDS];
+    int fieldCount = WireCodec.decode_fields(receiveData, offsets, types);
+    if (fieldCount < 1 || types[0] != WireCodec.STRING) {
+      return;
+    }
+    long requestId = WireCodec.get_requestId(receiveData);
+    PendingRequest request = pending.remove(requestId);
+    if (request == null) {
+      return;
+    }
+
+    int length = receiveData.getShort(offsets[0]) & 0xFFFF;
+    String reply = new String(receiveData.array(), offsets[0] + 2, length,
+        StandardCharsets.UTF_8).trim();
+    if (ComsFormat.verbose) {
+      System.out.println("Message recieved successfully.");
+    }
+    if (request.attempts == 1) {
+      update_rto((System.nanoTime() - request.sentAt) / 1e6);
+    }
+    request.reply.complete(reply);
+  }
+
+  /* Store a fragment of the reply to a request and acknowledge it if an ACK
+  ** is due.
+  **
+  ** @param requestId the ID of the request
+  ** @param request the request the fragment is a reply to
+  ** @param line the received datagram read one byte per char
+  ** @param data the received datagram
+  ** @param start the offset of the fragment number in the datagram
+  ** @return the whole reply if this was its last missing fragment, otherwise
+  ** null
+  */
+  private byte[] add_fragment(long requestId, PendingRequest request, 
+      String line, byte[] data, int start) {
+    int indexEnd = line.indexOf(ComsFormat.separator, start);
+    int countEnd = indexEnd < 0 ? -1 
+        : line.indexOf(ComsFormat.separator, indexEnd + 1);
+    if (countEnd < 0) {
+      return null;
+    }
+    int index;
+    int count;
+    try {
+      index = Integer.parseInt(line.substring(start, indexEnd));
+      count = Integer.parseInt(line.substring(indexEnd + 1, countEnd));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    int offset = countEnd + 1;
+    byte[] payload = request.add_fragment(index, count,
+        Arrays.copyOfRange(data, offset, line.length()));
 
+    ByteBuffer ack = request.ack_message(requestId, index);
+    if (ack != null) {
+      try {
+        channel.send(ack, address);
+      } catch (IOException e) {
+        System.out.println(e);
+      }
     }
-    System.out.println("Message recieved successfully.");
-    
-    reply = new String(receivePacket.getData());
-    reply = reply.trim();
-    
-    serverSocket.close();
-    return reply;     
-    
-    
+    return payload;
   }
-  
+
   /* Return the ip address of server object.
   **
   ** @return the ip address of the server
-  */  
+  */
   public String get_ip() {
     return this.ip;
   }
-   
+
+  /* Return the number of requests sent to the server still waiting for a
+  ** reply.
+  **
+  ** @return the number of requests waiting
+  */
+  public int get_outstanding() {
+    return pending.size();
+  }
+
+  /* Return the smoothed round trip time to the server.
+  **
+  ** @return the round trip time in ms, -1 if none has been measured
+  */
+  public synchronized double get_srtt() {
+    return srtt;
+  }
+
+  /* Close the connection to the server. Requests still waiting for a reply
+  ** will fail.
+  */
+  public synchronized void close() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.out.println(e);
+    }
+  }
+
   /* Return the hostname of server object.
   **
   ** @return the hostname of the server
-  */    
+  */
   public String get_host() {
     return this.host;
   }
-  
+
   /* Return the port of server object.
   **
   ** @return the port of the server
-  */   
+  */
   public int get_port() {
     return this.port;
   }
-  
+
+  /* A request waiting for a reply from the server, with the number of times
+  ** it has been sent, when it was last sent and the fragments of the reply
+  ** received so far. Fragments are acknowledged every ComsFormat.ackInterval
+  ** fragments, whenever one arrives out of order and when the last arrives.
+  */
+  private static class PendingRequest {
+    private CompletableFuture<String> reply;
+    private volatile int attempts = 0;
+    private volatile long sentAt = 0;
+    private byte[][] fragments = null; //fragments received, null if none
+    private volatile int received = 0; //number of fragments received
+    private int inOrder = 0; //number of fragments received without a gap
+    private int sinceAck = 0; //fragments received since the last ACK
+
+    public PendingRequest(CompletableFuture<String> reply) {
+      this.reply = reply;
+    }
+
+    /* Store a fragment of the reply.
+    **
+    ** @param index the number of the fragment
+    ** @param count the number of fragments in the reply
+    ** @param payload the bytes of the reply held by the fragment
+    ** @return the whole reply if this was its last missing fragment, 
+    ** otherwise null
+    */
+    public synchronized byte[] add_fragment(int index, int count, 
+        byte[] payload) {
+      if (fragments == null) {
+        fragments = new byte[count][];
+      }
+      if (count != fragments.length || index < 0 || index >= count 
+          || fragments[index] != null) {
+        return null;
+      }
+      fragments[index] = payload;
+      received++;
+      while (inOrder < count && fragments[inOrder] != null) {
+        inOrder++;
+      }
+      if (received < count) {
+        return null;
+      }
+
+      ByteArrayOutputStream whole = new ByteArrayOutputStream();
+      for (byte[] fragment : fragments) {
+        whole.write(fragment, 0, fragment.length);
+      }
+      return whole.toByteArray();
+    }
+
+    /* Return an ACK message for the fragments received if one is due after
+    ** receiving the given fragment. The message holds the number of fragments
+    ** received without a gap and then the fragments received after the gap.
+    **
+    ** @param requestId the ID of the request
+    ** @param index the number of the fragment just received
+    ** @return the ACK message, null if no ACK is due
+    */
+    public synchronized ByteBuffer ack_message(long requestId, int index) {
+      if (fragments == null) {
+        return null;
+      }
+      sinceAck++;
+      boolean outOfOrder = index >= inOrder;
+      if (received < fragments.length && sinceAck < ComsFormat.ackInterval
+          && !outOfOrder) {
+        return null;
+      }
+      sinceAck = 0;
+
+      StringBuilder message = new StringBuilder();
+      message.append(ComsFormat.requestIdTag).append(requestId)
+          .append(ComsFormat.separator).append(ComsFormat.ack)
+          .append(ComsFormat.separator).append(inOrder);
+      int last = Math.min(fragments.length, inOrder + 2 * ComsFormat.window);
+      for (int i = inOrder + 1; i < last; i++) {
+        if (fragments[i] != null) {
+          if (message.length() + 12 > ComsFormat.mtu) {
+            break;
+          }
+          message.append(ComsFormat.separator).append(i);
+        }
+      }
+      return ByteBuffer.wrap(message.toString().getBytes(
+          StandardCharsets.UTF_8));
+    }
+
+    /* Return the number of fragments of the reply received so far.
+    **
+    ** @return the number of fragments received
+    */
+    public int get_received() {
+      return received;
+    }
+
+    /* Return a RESEND message asking for the fragments of the reply that 
+    ** haven't been received, as many as fit in one datagram.
+    **
+    ** @param requestId the ID of the request
+    ** @return the RESEND message, null if no fragments have been received
+    */
+    public synchronized ByteBuffer resend_request(long requestId) {
+      if (fragments == null) {
+        return null;
+      }
+      StringBuilder message = new StringBuilder();
+      message.append(ComsFormat.requestIdTag).append(requestId)
+          .append(ComsFormat.separator).append(ComsFormat.resendRequest);
+      for (int i = 0; i < fragments.length; i++) {
+        if (fragments[i] == null) {
+          if (message.length() + 12 > ComsFormat.mtu) {
+            break;
+          }
+          message.append(ComsFormat.separator).append(i);
+        }
+      }
+      return ByteBuffer.wrap(message.toString().getBytes(
+          StandardCharsets.UTF_8));
+    }
+  }
 }
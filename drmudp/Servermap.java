@@ -1,27 +1,148 @@
 package drmudp;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* A class used to connect to the NameServer and retrieve and store information
 ** about other remote servers.
+**
+** Lookups are cached for ComsFormat.lookupTtl milliseconds, and a host that
+** isn't registered is remembered for ComsFormat.lookupNegativeTtl. Concurrent
+** lookups of the same host share one request to the NameServer, and hosts
+** resolved together are looked up with one multi-host lookup.
+**
+** A registration is a lease that the NameServer drops after 
+** ComsFormat.leaseTime, so once registered a process renews its registration
+** every ComsFormat.heartbeatInterval for as long as it runs.
+**
+** There may be several replicas of the NameServer. Registrations and their
+** renewals are sent to every replica. A lookup is sent to the replica that
+** answered first last time, and if it hasn't answered within 
+** ComsFormat.hedgeDelay the lookup is also sent to the next replica, and so 
+** on, using whichever reply arrives first.
+**
+** A host may have several instances registered. get_server chooses one for
+** each request by ComsFormat.balancer: in turn, the one with the fewest
+** requests waiting for a reply, or the one with the lowest smoothed round 
+** trip time weighted by the requests waiting on it.
 */
 class ServerMap {
-  private HashMap<String, Server> servers; //A mapping of hostnames to Servers
-  private Server nameServer; // The NameServer Server
+  //Timer shared by all server maps used to send heartbeats and hedges
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ServerMap timer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  //Ways of choosing which instance of a host to send a request to
+  public static final int ROUND_ROBIN = 0;
+  public static final int LEAST_OUTSTANDING = 1;
+  public static final int LOWEST_LATENCY = 2;
   
-  private int nameServerPort; //Name Server port
+  //A mapping of hostnames to the Servers of their instances
+  private ConcurrentHashMap<String, Instances> servers;
+  //Actions to run when the instances of a host change, by hostname
+  private ConcurrentHashMap<String, List<Runnable>> listeners;
+  //Cached lookups and the lookups in progress, by hostname
+  private ConcurrentHashMap<String, Resolution> resolutions;
+  private ConcurrentHashMap<String, CompletableFuture<Resolution>> lookups;
+  private Server[] nameServers; // The NameServer replica Servers
+  private volatile int preferred = 0; //index of the replica tried first
   
   /* Create a new map of servers and open connection/store information about the 
-  ** nameServer. The map associates host name with a Server object. The server
-  ** object represents a connected server.
+  ** nameServer replicas. The map associates host name with a Server object. 
+  ** The server object represents a connected server.
+  **
+  ** @param nameServerPorts the ports of the Name Server replicas
+  */
+  public ServerMap(int... nameServerPorts) {
+    servers = new ConcurrentHashMap<String, Instances>();
+    listeners = new ConcurrentHashMap<String, List<Runnable>>();
+    resolutions = new ConcurrentHashMap<String, Resolution>();
+    lookups = new ConcurrentHashMap<String, CompletableFuture<Resolution>>();
+    nameServers = new Server[nameServerPorts.length];
+    for (int i = 0; i < nameServerPorts.length; i++) {
+      nameServers[i] = new Server(ComsFormat.nameserver_hostname
+          , ComsFormat.nameserver_ip, nameServerPorts[i]);
+    }
+  }
+  
+  /* Return the ports in a comma separated list of Name Server ports, or null
+  ** if any of them isn't a valid port.
+  **
+  ** @param portsArg the list of ports
+  ** @return the ports in the list
+  */
+  public static int[] parse_ports(String portsArg) {
+    String[] parts = portsArg.split(ComsFormat.portListSeparator);
+    int[] ports = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      try {
+        ports[i] = Integer.parseInt(parts[i]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (ports[i] < 1 || ports[i] > 65535) {
+        return null;
+      }
+    }
+    return ports;
+  }
+  
+  /* Send a message to the Name Server replicas, starting with the preferred
+  ** one and sending to the next replica each time hedgeDelay passes without
+  ** a reply. The returned future completes with the first reply, or with an
+  ** exception if every replica fails.
   **
-  ** @param nameServerPort the port of the Name Server
+  ** @param message the message to send
+  ** @param hedgeDelay the time to wait before trying the next replica, 0 to
+  ** send to every replica at once
+  ** @return a future completed with the first reply
   */
-  public ServerMap(int nameServerPort) {
-    servers = new HashMap<String, Server>();
-    this.nameServerPort = nameServerPort;
-    nameServer = new Server(ComsFormat.nameserver_hostname
-        , ComsFormat.nameserver_ip, nameServerPort);
+  private CompletableFuture<String> send_replicas(Message message, 
+      int hedgeDelay) {
+    CompletableFuture<String> reply = new CompletableFuture<String>();
+    AtomicInteger failures = new AtomicInteger();
+    int first = preferred;
+    
+    for (int i = 0; i < nameServers.length; i++) {
+      int replica = (first + i) % nameServers.length;
+      Runnable send = () -> {
+        if (reply.isDone()) {
+          failures.incrementAndGet();
+          return;
+        }
+        nameServers[replica].send_async(message, ComsFormat.retry, 
+            ComsFormat.sendTimeout, ComsFormat.receiveTimeout)
+            .whenComplete((result, e) -> {
+              if (e == null) {
+                if (reply.complete(result)) {
+                  preferred = replica;
+                }
+              } else if (failures.incrementAndGet() == nameServers.length) {
+                reply.completeExceptionally(e);
+              }
+            });
+      };
+      if (i == 0 || hedgeDelay == 0) {
+        send.run();
+      } else {
+        timer.schedule(send, (long) i * hedgeDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+    return reply;
   }
   
   /* Register server details with the name Server.
@@ -33,12 +154,11 @@ class ServerMap {
   public void register(String host, int port, String ip) 
       throws RegistrationException{
     String reply = "";
-    String message = ComsFormat.registration  + ComsFormat.separator + host 
-        + ComsFormat.separator + port + ComsFormat.separator + ip;
+    Message message = new Message(ComsFormat.registration).add(host).add(port)
+        .add(ip);
 
     try {
-      reply = nameServer.send_message(message, ComsFormat.retry,
-          ComsFormat.sendTimeout,ComsFormat.receiveTimeout);
+      reply = send_replicas(message, 0).get();
     } catch (Exception e) {
       throw new RegistrationException();
     }    
@@ -48,83 +168,388 @@ class ServerMap {
     } else {
       System.out.println(reply);
     }
+    
+    timer.scheduleAtFixedRate(() -> renew(message), 
+        ComsFormat.heartbeatInterval, ComsFormat.heartbeatInterval, 
+        TimeUnit.MILLISECONDS);
   }
   
-  /* Connect to a new server and add it's details to the map of servers.
+  /* Renew a registration with the name server. A renewal is the registration
+  ** sent again, and one that fails is only reported as the next renewal may
+  ** still succeed before the lease runs out.
+  **
+  ** @param message the registration message
+  */
+  private void renew(Message message) {
+    send_replicas(message, 0).whenComplete((reply, e) -> {
+      if (e != null || !reply.equals(ComsFormat.regSucesss)) {
+        System.err.println("Registration renewal failed");
+      }
+    });
+  }
+  
+  /* Connect to a new server and add it's details to the map of servers. The
+  ** host is resolved with a single lookup, or from the lookup cache if an
+  ** earlier lookup hasn't expired yet.
   ** 
   ** @param host the hostname of the server
   */
   public void add_server(String host) throws LookupException, 
      NameServerContactException{
-      
-    String ip = lookup_ip(host);
-    int port = lookup_port(host);
-    System.out.println("Lookup of host " + host + ": Success");
+    add_servers(host);
+  }
+  
+  /* Connect to several new servers and add their details to the map of 
+  ** servers. The hosts that aren't in the lookup cache are resolved together
+  ** with one multi-host lookup. If any host isn't registered the others are
+  ** still added.
+  ** 
+  ** @param hosts the hostnames of the servers
+  */
+  public void add_servers(String... hosts) throws LookupException, 
+     NameServerContactException{
+    Map<String, Resolution> resolved = resolve(Arrays.asList(hosts));
+    String missing = null;
     
-    Server server = new Server(host, ip, port);
+    for (String host : hosts) {
+      Resolution resolution = resolved.get(host);
+      if (!resolution.is_found()) {
+        if (missing == null) {
+          missing = host;
+        }
+        continue;
+      }
+      System.out.println("Lookup of host " + host + ": Success");
+      install(host, resolution);
+    }
     
-    servers.put(host, server);
+    if (missing != null) {
+      throw new LookupException(missing);
+    }
   }
   
-
+  /* Register an action to run whenever the instances of a host change after
+  ** it was first added, for example because a server registered again at a
+  ** new address.
+  **
+  ** @param host the hostname of the server
+  ** @param listener the action to run
+  */
+  public void on_change(String host, Runnable listener) {
+    listeners.computeIfAbsent(host, 
+        name -> new CopyOnWriteArrayList<Runnable>()).add(listener);
+  }
   
-  /* Send a lookup request to the name server to get the port and ip of given
-   ** host.
-   **
-   ** @param host the hostname to look up
-   ** @return an array of strings containing the port and ip of host
-   */
-  private String[] lookup(String host) throws LookupException, 
-      NameServerContactException {
-    String reply = "";
-    String message = ComsFormat.lookup + ComsFormat.separator + host;
-    nameServer = new Server(ComsFormat.nameserver_hostname, 
-        ComsFormat.nameserver_ip, nameServerPort);
-
-
+  /* Store the instances of a resolved host, keeping the current Server of
+  ** each instance whose address hasn't changed. The Servers of instances that
+  ** are gone are closed once any requests still waiting on them are done.
+  ** If the instances have changed the host's listeners are run.
+  **
+  ** @param host the hostname of the server
+  ** @param resolution the address of each instance of the server
+  */
+  private void install(String host, Resolution resolution) {
+    boolean[] changed = {false};
+    servers.compute(host, (name, current) -> {
+      Server[] instances = new Server[resolution.ips.length];
+      for (int i = 0; i < instances.length; i++) {
+        if (current != null) {
+          for (Server server : current.servers) {
+            if (server.get_ip().equals(resolution.ips[i])
+                && server.get_port() == resolution.ports[i]) {
+              instances[i] = server;
+            }
+          }
+        }
+        if (instances[i] == null) {
+          instances[i] = new Server(name, resolution.ips[i], 
+              resolution.ports[i]);
+          if (current != null) {
+            changed[0] = true;
+          }
+        }
+      }
+      
+      if (current != null) {
+        List<Server> kept = Arrays.asList(instances);
+        for (Server server : current.servers) {
+          if (!kept.contains(server)) {
+            changed[0] = true;
+            timer.schedule(() -> server.close(), ComsFormat.leaseTime, 
+                TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+      return new Instances(instances);
+    });
+    
+    if (changed[0]) {
+      for (Runnable listener : listeners.getOrDefault(host, 
+          new ArrayList<Runnable>())) {
+        listener.run();
+      }
+    }
+  }
+  
+  /* Return the addresses of hosts, from the lookup cache for those it holds
+  ** an entry for that hasn't expired, otherwise by waiting for a lookup.
+  **
+  ** @param hosts the hostnames to resolve
+  ** @return the address of each host, with a null IP if it isn't registered
+  */
+  private Map<String, Resolution> resolve(List<String> hosts) 
+      throws NameServerContactException {
+    HashMap<String, Resolution> resolved = new HashMap<String, Resolution>();
+    ArrayList<String> uncached = new ArrayList<String>();
+    
+    for (String host : hosts) {
+      Resolution resolution = resolutions.get(host);
+      if (resolution != null && !resolution.is_expired()) {
+        resolved.put(host, resolution);
+      } else {
+        uncached.add(host);
+      }
+    }
+    
     try {
-      reply = nameServer.send_message(message, ComsFormat.retry, 
-          ComsFormat.sendTimeout, ComsFormat.receiveTimeout);
-    } catch (Exception e) {
+      for (Map.Entry<String, CompletableFuture<Resolution>> lookup 
+          : lookup(uncached).entrySet()) {
+        resolved.put(lookup.getKey(), lookup.getValue().get());
+      }
+    } catch (ExecutionException | InterruptedException e) {
       throw new NameServerContactException();
     }
-
-    if (reply.equals(ComsFormat.lookupError)) {
-      throw new LookupException(host);
-    } 
-
-    return reply.split(ComsFormat.separator);
+    return resolved;
   }
   
-  /* Returns the IP address of the given host after looking it up with the name
-  ** Server.
+  /* Send lookup requests to the name server to get the port and ip of the
+  ** given hosts. Hosts are looked up ComsFormat.lookupBatch at a time with a
+  ** multi-host lookup, or with a single lookup if there is just one. A lookup
+  ** for a host that already has one in progress shares the reply of that 
+  ** lookup rather than sending another. The result, including a host not
+  ** being registered, is stored in the lookup cache.
   **
-  ** @param host the hostname to lookup
-  ** @return the IP address as a string
-  */  
-  private String lookup_ip (String host) throws LookupException
-      , NameServerContactException{
-    return lookup(host)[0];
+  ** @param hosts the hostnames to look up
+  ** @return a future for each host completed with the address of the host
+  */
+  private Map<String, CompletableFuture<Resolution>> lookup(
+      List<String> hosts) {
+    HashMap<String, CompletableFuture<Resolution>> results = 
+        new HashMap<String, CompletableFuture<Resolution>>();
+    ArrayList<String> toSend = new ArrayList<String>();
+    
+    for (String host : hosts) {
+      CompletableFuture<Resolution> result = 
+          new CompletableFuture<Resolution>();
+      CompletableFuture<Resolution> inProgress = lookups.putIfAbsent(host, 
+          result);
+      if (inProgress != null) {
+        results.put(host, inProgress);
+      } else {
+        results.put(host, result);
+        toSend.add(host);
+      }
+    }
+    
+    for (int i = 0; i < toSend.size(); i += ComsFormat.lookupBatch) {
+      List<String> batch = toSend.subList(i, 
+          Math.min(toSend.size(), i + ComsFormat.lookupBatch));
+      send_lookup(batch, results);
+    }
+    return results;
   }
   
-  /* Returns the port of the given host after looking it up with the name
-  ** Server.
+  /* Send one lookup request for a batch of hosts and complete the future of
+  ** each host when the reply arrives.
   **
-  ** @param host the hostname to lookup
-  ** @return the port of the given host
-  */    
-  private int lookup_port (String host) throws LookupException
-      , NameServerContactException{
-    return Integer.parseInt(lookup(host)[1]);
+  ** @param batch the hostnames to look up
+  ** @param results the future of each host
+  */
+  private void send_lookup(List<String> batch, 
+      Map<String, CompletableFuture<Resolution>> results) {
+    String[] hosts = batch.toArray(new String[0]);
+    ArrayList<CompletableFuture<Resolution>> futures = 
+        new ArrayList<CompletableFuture<Resolution>>();
+    Message message = new Message(hosts.length == 1 ? ComsFormat.lookup 
+        : ComsFormat.multiLookup);
+    for (int i = 0; i < hosts.length; i++) {
+      message.add(hosts[i]);
+      futures.add(results.get(hosts[i]));
+    }
+    
+    send_replicas(message, ComsFormat.hedgeDelay).whenComplete((reply, e) -> {
+      String[] lines = null;
+      if (e == null) {
+        lines = hosts.length == 1 ? new String[] {reply} 
+            : reply.split(ComsFormat.newline);
+      }
+      for (int i = 0; i < hosts.length; i++) {
+        Resolution resolution = null;
+        if (lines != null && lines.length == hosts.length) {
+          resolution = Resolution.parse(lines[i]);
+        }
+        if (resolution != null) {
+          resolutions.put(hosts[i], resolution);
+        }
+        CompletableFuture<Resolution> result = futures.get(i);
+        lookups.remove(hosts[i], result);
+        if (resolution == null) {
+          result.completeExceptionally(e != null ? e 
+              : new LookupException(hosts[i]));
+        } else {
+          result.complete(resolution);
+        }
+      }
+    });
   }
   
-  
-  /* Return the server object for the given hostname.
+  /* Return the server object to send the next request for the given hostname
+  ** to, chosen from the host's instances by ComsFormat.balancer. If the 
+  ** host's lookup has expired, every server whose lookup has expired is
+  ** looked up again in the background and the current Servers are used until
+  ** the new lookups complete.
   ** 
   ** @param host the hostname of the server to retrieve
   ** @return the Server object associated with hostname
   */
   public Server get_server(String host) {
-    return servers.get(host);
+    Resolution resolution = resolutions.get(host);
+    if (resolution != null && resolution.is_expired()) {
+      refresh();
+    }
+    Instances instances = servers.get(host);
+    if (instances == null) {
+      return null;
+    }
+    return instances.select(ComsFormat.balancer);
+  }
+  
+  /* Look up every server whose lookup has expired again, and replace the 
+  ** Server of any that has moved.
+  */
+  private void refresh() {
+    ArrayList<String> expired = new ArrayList<String>();
+    for (String host : servers.keySet()) {
+      Resolution resolution = resolutions.get(host);
+      if (resolution != null && resolution.is_expired()) {
+        expired.add(host);
+      }
+    }
+    
+    lookup(expired).forEach((host, result) -> 
+        result.thenAccept(refreshed -> {
+          if (refreshed.is_found()) {
+            install(host, refreshed);
+          }
+        }));
+  }
+  
+  /* The address of a host given by a NameServer lookup and the time it can be
+  ** used until. A host that isn't registered has a null IP and is kept for a
+  ** shorter time so a server that registers later is soon found.
+  */
+  private static class Resolution {
+    private final String[] ips; //IP of each instance, empty if none
+    private final int[] ports; //port of each instance
+    private final long expires; //time the resolution expires in milliseconds
+    
+    private Resolution(String[] ips, int[] ports, long ttl) {
+      this.ips = ips;
+      this.ports = ports;
+      this.expires = System.currentTimeMillis() + ttl;
+    }
+    
+    /* Return the resolution held by a lookup reply, or by one line of a
+    ** multi-host lookup reply. The reply is the IP and port of each instance
+    ** of the host.
+    **
+    ** @param reply the reply from the NameServer
+    ** @return the resolution, null if the reply is malformed
+    */
+    private static Resolution parse(String reply) {
+      if (reply.equals(ComsFormat.lookupError) 
+          || reply.equals(ComsFormat.notFound)) {
+        return new Resolution(new String[0], new int[0], 
+            ComsFormat.lookupNegativeTtl);
+      }
+      String[] parts = reply.split(ComsFormat.separator);
+      if (parts.length % 2 != 0) {
+        return null;
+      }
+      String[] ips = new String[parts.length / 2];
+      int[] ports = new int[parts.length / 2];
+      try {
+        for (int i = 0; i < ips.length; i++) {
+          ips[i] = parts[2 * i];
+          ports[i] = Integer.parseInt(parts[2 * i + 1]);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      return new Resolution(ips, ports, ComsFormat.lookupTtl);
+    }
+    
+    /* Return whether the NameServer knew the host. A resolution of an 
+    ** unknown host is kept as well, so the host isn't looked up again on 
+    ** every request until it expires.
+    **
+    ** @return true if the host has at least one instance
+    */
+    private boolean is_found() {
+      return ips.length > 0;
+    }
+    
+    /* Return whether the resolution has outlived its time to live, after
+    ** which the host is looked up again. A negative resolution expires
+    ** after ComsFormat.lookupNegativeTtl and a found one after 
+    ** ComsFormat.lookupTtl.
+    **
+    ** @return true if the resolution has expired
+    */
+    private boolean is_expired() {
+      return System.currentTimeMillis() >= expires;
+    }
+  }
+  
+  /* The instances of a host, and the choice of which one to send the next
+  ** request to.
+  */
+  private static class Instances {
+    private final Server[] servers; //a Server for each instance
+    private final AtomicInteger next = new AtomicInteger(); //next to try first
+    
+    private Instances(Server[] servers) {
+      this.servers = servers;
+    }
+    
+    /* Return the instance to send the next request to. Instances are tried 
+    ** in turn starting one further on each call, so ties are broken round 
+    ** robin.
+    **
+    ** @param balancer the way to choose the instance
+    ** @return the Server of the chosen instance
+    */
+    private Server select(int balancer) {
+      int start = Math.floorMod(next.getAndIncrement(), servers.length);
+      if (balancer == ROUND_ROBIN || servers.length == 1) {
+        return servers[start];
+      }
+      
+      Server best = null;
+      double bestCost = 0;
+      for (int i = 0; i < servers.length; i++) {
+        Server server = servers[(start + i) % servers.length];
+        double cost = server.get_outstanding();
+        if (balancer == LOWEST_LATENCY) {
+          //An instance with no round trip measured yet is tried first
+          cost = Math.max(server.get_srtt(), 0) * (cost + 1);
+        }
+        if (best == null || cost < bestCost) {
+          best = server;
+          bestCost = cost;
+        }
+      }
+      return best;
+    }
   }
 }
@@ -0,0 +1,96 @@
+package drmudp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/* Measures how long the Store and Content take to load their catalogs on
+** startup. For each catalog size a stock file and a content file are written
+** and each is loaded twice: first with no snapshot or index, as on the first
+** start after the file changes, which parses the file and writes the
+** snapshot or index, and then again from the snapshot or index, as on every
+** later start. The heap retained by the Stock loaded from its snapshot is
+** measured once garbage has been collected.
+**
+** The benchmark takes one optional argument, a comma separated list of
+** catalog sizes in items, 1000000,10000000 if it isn't given:
+**
+**   java -Xmx1g drmudp.StartupBenchmark [sizes]
+**
+** Startup from the snapshot needs much less heap than the first import, so
+** the snapshot load of a Stock at 10M items can also be checked alone with
+** -Xmx256m once the snapshot has been written.
+*/
+class StartupBenchmark {
+
+  /* Run the benchmark.
+  **
+  ** @param args the catalog sizes
+  */
+  public static void main(String[] args) throws Exception {
+    String[] sizes = (args.length > 0 ? args[0] : "1000000,10000000")
+        .split(ComsFormat.portListSeparator);
+
+    for (String size : sizes) {
+      int items = Integer.parseInt(size);
+      Path directory = Files.createTempDirectory("startup");
+      try {
+        Path stockFile = directory.resolve("stock.txt");
+        Path contentFile = directory.resolve("content.txt");
+        try (BufferedWriter stock = Files.newBufferedWriter(stockFile);
+            BufferedWriter content = Files.newBufferedWriter(contentFile)) {
+          for (int i = 0; i < items; i++) {
+            long itemId = 1000000L + 7L * i;
+            stock.write(itemId + " " + (i % 10000 + 0.5f) + "\n");
+            content.write(itemId + " Content of item " + i + "\n");
+          }
+        }
+
+        long start = System.nanoTime();
+        new Stock(stockFile);
+        double stockImport = (System.nanoTime() - start) / 1e6;
+        long before = used_heap();
+        start = System.nanoTime();
+        Stock stock = new Stock(stockFile);
+        double stockLoad = (System.nanoTime() - start) / 1e6;
+        long stockHeap = used_heap() - before;
+
+        start = System.nanoTime();
+        new StockContent(contentFile);
+        double contentImport = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        StockContent content = new StockContent(contentFile);
+        double contentLoad = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("%d items%n", items);
+        System.out.printf("  Stock        import %8.1f ms, from snapshot "
+            + "%7.1f ms, %6.1f MB of heap, listing of %d fragments%n",
+            stockImport, stockLoad, stockHeap / 1e6,
+            stock.get_listing().get_count());
+        System.out.printf("  StockContent import %8.1f ms, from index    "
+            + "%7.1f ms, item 1000000: %s%n", contentImport, contentLoad,
+            content.get_content(1000000L));
+      } finally {
+        try (Stream<Path> files = Files.walk(directory)) {
+          files.sorted(Comparator.reverseOrder()).forEach(file ->
+              file.toFile().delete());
+        }
+      }
+    }
+  }
+
+  /* Return the heap in use once garbage has been collected.
+  **
+  ** @return the heap in use in bytes
+  */
+  private static long used_heap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,142 @@
+package drmudp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/* Compares a Stock with the TreeMap<Long, Float> the Store used to keep its
+** stock in. A stock file of a number of items is written and loaded into
+** both, and for each the heap retained once it is loaded and the time of a
+** get_price lookup of random items that are in the stock are measured.
+**
+** The benchmark takes one optional argument, the number of items, 10000000
+** if it isn't given. The TreeMap needs about 1 GB of heap at 10M items, so
+** the benchmark is run with a larger heap than the default:
+**
+**   java -Xmx3g drmudp.StockBenchmark [items]
+**
+** The retained heap of the Stock includes the listing it keeps for LIST
+** requests.
+*/
+class StockBenchmark {
+  private static final int QUERIES = 1 << 20; //random item-IDs looked up
+  private static final int LOOKUPS = 20000000; //lookups timed
+  private static final int RUNS = 3;
+
+  /* Run the benchmark.
+  **
+  ** @param args the number of items
+  */
+  public static void main(String[] args) throws Exception {
+    int items = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+    Random random = new Random(1);
+    long[] queries = new long[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      queries[i] = item_id(random.nextInt(items));
+    }
+
+    Path directory = Files.createTempDirectory("stock");
+    try {
+      Path file = directory.resolve("stock.txt");
+      try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+        for (int i = 0; i < items; i++) {
+          writer.write(item_id(i) + " " + price(i) + "\n");
+        }
+      }
+
+      long before = used_heap();
+      Stock stock = new Stock(file);
+      long stockHeap = used_heap() - before;
+
+      before = used_heap();
+      TreeMap<Long, Float> map = new TreeMap<Long, Float>();
+      for (int i = 0; i < items; i++) {
+        map.put(item_id(i), price(i));
+      }
+      long mapHeap = used_heap() - before;
+
+      System.out.printf("%d items%n", items);
+      for (int run = 0; run < RUNS; run++) {
+        double stockTime = time(queries, id -> stock.get_price(id));
+        double mapTime = time(queries, id -> map.get(id));
+        System.out.printf("Stock   %6.1f ns per get_price, %6.1f MB "
+            + "retained%n", stockTime, stockHeap / 1e6);
+        System.out.printf("TreeMap %6.1f ns per get,       %6.1f MB "
+            + "retained%n", mapTime, mapHeap / 1e6);
+      }
+    } finally {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file ->
+            file.toFile().delete());
+      }
+    }
+  }
+
+  /* Return the ID of an item in the stock file, spread out so the IDs aren't
+  ** just positions.
+  **
+  ** @param i the number of the item
+  ** @return the item-ID
+  */
+  private static long item_id(int i) {
+    return 1000000L + 7L * i;
+  }
+
+  /* Return the price of an item in the stock file.
+  **
+  ** @param i the number of the item
+  ** @return the price
+  */
+  private static float price(int i) {
+    return i % 10000 + 0.5f;
+  }
+
+  /* Time lookups of the query item-IDs in turn.
+  **
+  ** @param queries the item-IDs to look up
+  ** @param lookup the lookup to time
+  ** @return the mean time of a lookup in ns
+  */
+  private static double time(long[] queries, Lookup lookup) {
+    float total = 0; //kept so the lookups aren't optimised away
+    long start = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      total += lookup.get_price(queries[i & (QUERIES - 1)]);
+    }
+    double time = (double) (System.nanoTime() - start) / LOOKUPS;
+    if (total == 0) {
+      System.out.println("No prices found");
+    }
+    return time;
+  }
+
+  /* Return the heap in use once garbage has been collected.
+  **
+  ** @return the heap in use in bytes
+  */
+  private static long used_heap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /* A way of looking up the price of an item.
+  */
+  private interface Lookup {
+
+    /* Return the price of an item.
+    **
+    ** @param itemId the ID of the item
+    ** @return the price
+    */
+    float get_price(long itemId);
+  }
+}
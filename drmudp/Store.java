@@ -1,10 +1,16 @@
 package drmudp;
 
-import java.net.*;
 import java.io.*;
 import java.util.*;
-import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 
 /* The Store performs intermediation for client processes so they can request 
 ** lists of items held by the store and facilitate the buying of those items
@@ -15,8 +21,10 @@ import java.nio.file.Files;
 ** The Store Server takes three command line arguments. The first is the 
 ** port the server is to listen to for incoming connections. The third is the 
 ** nameServer port which is used to register the Store Server's 
-** ip/port/hostname details. The second is the path to a file containing details
-** about the store stock.
+** ip/port/hostname details, or a comma separated list of ports if there are 
+** several nameServer replicas. The second is the path to a file containing 
+** details about the store stock. The stock is reloaded whenever the file 
+** changes.
 ** 
 */
 public class Store {
@@ -29,14 +37,17 @@ public class Store {
 
   //Instance variables  
   private ServerMap servers = null; //map of servers 
-  private DatagramSocket serverSocket = null; 
-  InetAddress clientIPAddress;
-  int clientPort;
+  private EventLoop loop = null; //loop receiving and dispatching messages
   int stockPort;
   
-  private String message; //message read from remote client process
+  //Workers that complete purchases as replies arrive from Bank and Content
+  private Executor workers = null;
 
-  private Stock stock; //The stock content info read from file
+  //The stock content info read from file, replaced when the file changes
+  private volatile Stock stock;
+  private FileWatcher stockWatcher = null; //watcher that reloads the stock
+  private ContentCache contentCache; //content already fetched from Content
+  private AuthBatcher authoriser; //sends Bank checks in batches
   
   /* Creates a new Store Object using the command line arguments.
   **
@@ -59,7 +70,7 @@ public class Store {
   ** path and the NameServer port.
   */  
   public Store(String[] args) {
-    int nameServerPort;
+    int[] nameServerPorts;
     
     if (args.length != 3) {
       exit(BAD_ARGS);  
@@ -69,27 +80,42 @@ public class Store {
       exit(BAD_ARGS);  
     }
     
-    if ((nameServerPort = check_valid_port(args[2])) < 0) {
+    if ((nameServerPorts = ServerMap.parse_ports(args[2])) == null) {
       exit(BAD_ARGS);  
     }
     
     String currentDir = new File("").getAbsolutePath();
     String path = currentDir + ComsFormat.fileSep + args[1];  
     
+    //Watched before it is loaded so a change made while loading isn't missed
+    try {
+      stockWatcher = new FileWatcher(Paths.get(path), 
+          file -> stock = new Stock(file));
+    } catch (IOException e) {
+      System.err.print("Could not watch stock file, it won't be reloaded\n");
+    }
+    
     try {
-      stock = new Stock(Files.readAllLines(Paths.get(path))); 
+      stock = new Stock(Paths.get(path)); 
       
     } catch (IOException e) {
       System.out.println("Could not find \""  + args[1] 
           + "\" in directory: " + currentDir);
       exit(BAD_ARGS);
     }
+    if (stockWatcher != null) {
+      stockWatcher.start();
+    }
     
-    listen(stockPort);
+    try {
+      loop = new EventLoop(stockPort);
+    } catch (IOException e) {
+      exit(SOCKET_FAILURE);
+    }
     System.err.print("Store waiting for incoming messages\n");
     
     try {
-      servers = new ServerMap(nameServerPort);
+      servers = new ServerMap(nameServerPorts);
       servers.register(ComsFormat.store_hostname, stockPort
           , ComsFormat.store_ip);
     } catch ( RegistrationException e){
@@ -97,8 +123,13 @@ public class Store {
     }
     
     try {
-      servers.add_server(ComsFormat.content_hostname);
-      servers.add_server(ComsFormat.bank_hostname);
+      servers.add_servers(ComsFormat.content_hostname, 
+          ComsFormat.bank_hostname);
+      authoriser = new AuthBatcher(servers);
+      contentCache = new ContentCache(ComsFormat.contentCacheSize, 
+          ComsFormat.contentCacheTime);
+      servers.on_change(ComsFormat.content_hostname, 
+          () -> contentCache.clear());
     } catch (LookupException e){
       System.err.print(e.getMessage() + ComsFormat.separator 
           + "has not registered\n");
@@ -107,181 +138,187 @@ public class Store {
       System.err.print("Could not contact NameServer\n");
       exit(NAMESERVER_CONNECT_FAIL);
     }    
-	
-	//Processes messages
-        while (true) {
-          try {
-            get_message();
-          } catch (IOException e) {
-            continue;
-          }
-          process_message();
-      }
-  
-  }
-  
-  /*  Create a new datagram socket from which to receive datagrams from clients.
-  ** @port the port to listen on
-  */   
-  private void listen(int port) {
-    try {
-      serverSocket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      exit(SOCKET_FAILURE);
-    }
-  }
-
-  /* Read in a datagram from a client. Extract IP, Port and message.
-  */
-  private void get_message() throws IOException {
-    byte[] receiveData = new byte[1024];
-    int dataLength = receiveData.length;
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, dataLength); 
-    
-    serverSocket.receive(receivePacket);         
     
-    String line = new String(receivePacket.getData());
-    line = line.trim();
-    System.out.println("Message from Client: " + line);
-    clientIPAddress = receivePacket.getAddress();
-    clientPort = receivePacket.getPort();
+    if (ComsFormat.storeWorkers > 0) {
+      workers = Executors.newFixedThreadPool(ComsFormat.storeWorkers);
+    } else {
+      workers = runnable -> runnable.run();
+    }
     
-    message = line;
-
+    loop.add_handler(ComsFormat.listRequest, request -> send_list(request));
+    loop.add_handler(ComsFormat.buyRequest, 
+        request -> process_buy_request(request));
+	
+    //Reads messages and passes each one to its handler
+    loop.run();
   }
   
-  
-  /* If the message is a valid list request the Store replies with the list, if 
-  ** it is a valid buy request the store processes the buy request and sends the
-  ** result, otherwise the message is ignored.
+  /* Send a formatted Stock list to the client processes connected to store if
+  ** the message is a valid list request, otherwise the message is ignored.
+  ** A list request with no fields lists the entire stock, LIST <offset> 
+  ** <count> lists count items starting at the given position in the list and
+  ** LIST FROM <itemId> <count> lists count items starting at the first item
+  ** with an ID no less than the given one.
+  **
+  ** @param request the request to reply to
   */
-  private void process_message() {
-    if (message.equals(ComsFormat.listRequest)){
-      send_list();
-    } 
-      
-    String[] messageParts = message.split(ComsFormat.separator);
-      
-    if (messageParts.length == 3 
-      && (messageParts[0].equals(ComsFormat.buyRequest))) {       
-      process_buy_request(messageParts);
+  private void send_list(Request request) {
+    String page;
+    Stock stock = this.stock; //the stock may be reloaded while listing
+    
+    if (request.field_count() == 0) {
+      request.reply(stock.get_listing());
+      return;
     }
-
-    return;
-  }
-  
-  /* Send a formatted Stock list to the client processes connected to store.
-  */
-  private void send_list() {
-    reply(ComsFormat.listStart + ComsFormat.newline + stock.toString() 
-        + ComsFormat.newline + ComsFormat.listEnd);
-  }
-  
-  /* Send a datagram to the client as a reply.
-   * 
-  ** @param reply the message to reply with
-  */
-  private void reply(String reply) {
-    byte[] sendData = new byte[1024];
-    sendData = reply.getBytes();
-        
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, 
-        clientIPAddress, clientPort);
     
     try {
-      serverSocket.send(sendPacket);
-      System.out.println("Message to Client:" + reply + ComsFormat.newline);
-    } catch (IOException e) {
-      System.err.println("Unable to send reply");
+      if (request.field_count() == 2) {
+        page = stock.get_page_at(request.get_long(0), request.get_long(1));
+      } else if (request.field_count() == 3 
+          && request.get_string(0).equals(ComsFormat.listFrom)) {
+        page = stock.get_page_from(request.get_long(1), request.get_long(2));
+      } else {
+        return;
+      }
+    } catch (NumberFormatException e) {
       return;
     }
-    
+    request.reply(page);
   }
   
   /* Extract item requested to buy and check it's valid. Check financial info
   ** with Bank Server, attempt to retrieve content from Content Server. If any 
   ** of the checks or attempts fail reply to client processes with a transaction 
   ** fail message. Otherwise if everything succeeds send the content to client.
+  ** If the message is not a valid buy request it is ignored.
   **
-  ** @param messageParts the buy message received broken into an array of words
+  ** The Bank and Content requests are sent without waiting for their replies, 
+  ** the rest of the purchase is completed on a worker when each reply arrives.
+  ** If ComsFormat.speculativeContent is set the content is requested at the
+  ** same time as the Bank check rather than after it, and is only sent to the
+  ** client if the Bank approves the purchase. Bank checks are sent in 
+  ** batches of purchases by an AuthBatcher.
+  **
+  ** @param request the buy request to process and reply to
   */
-  private void process_buy_request(String[] messageParts) {
+  private void process_buy_request(Request request) {
     long creditCard = 0;
     long itemId = 0;
     float itemPrice = 0;
-    String bankMsg = "";
-    String bankReply = "";
-    String contentMsg = "";
-    String content = "";
+    
+    if (request.field_count() != 2) {
+      return;
+    }
       
     try {
-      creditCard = Long.parseLong(messageParts[1]);
-      itemId = Long.parseLong(messageParts[2]);
+      creditCard = request.get_long(0);
+      itemId = request.get_long(1);
       itemPrice = stock.get_price(itemId);
     } catch (NumberFormatException e) {
-      transaction_fail(itemId);
+      transaction_fail(request, itemId);
       return;
     } 
     if (itemPrice < 0) {
-      transaction_fail(itemId);
+      transaction_fail(request, itemId);
       return;
     }
         
-    bankMsg = itemId + ComsFormat.separator + itemPrice + ComsFormat.separator 
-	    + creditCard;
-    
-    try {
-      System.out.println("Message to bank: " + bankMsg);
-      bankReply = servers.get_server(ComsFormat.bank_hostname).
-          send_message(bankMsg, ComsFormat.retry, ComsFormat.sendTimeout, 
-          ComsFormat.receiveTimeout);
-      System.out.println("Message from bank: " + bankReply);    
-    } catch (IOException e) {
-        transaction_fail(itemId);
+    long boughtId = itemId;
+    Request buyer = request.detach(); //replied to after the handler returns
+    CompletableFuture<String> content = null;
+    if (ComsFormat.speculativeContent) {
+      content = get_content(itemId);
     }
-      
-    contentMsg = ComsFormat.request_content + ComsFormat.separator + itemId;
-      
+    CompletableFuture<String> fetched = content;
+    authoriser.authorise(itemId, itemPrice, creditCard)
+        .whenCompleteAsync((bankReply, e) -> {
+          if (e != null) {
+            transaction_fail(buyer, boughtId);
+            return;
+          }
+          if (ComsFormat.verbose) {
+            System.out.println("Message from bank: " + bankReply);
+          }
+          process_bank_reply(buyer, boughtId, bankReply, fetched);
+        }, workers);
+  }
+  
+  /* Complete a purchase once the Bank has replied. If the purchase was 
+  ** approved the content is retrieved and sent to the client, otherwise the
+  ** client is sent a transaction fail message and any content already
+  ** requested is discarded.
+  **
+  ** @param request the buy request to reply to
+  ** @param itemId the ID of the item being bought
+  ** @param bankReply the reply from the Bank
+  ** @param fetched the content requested with the Bank check, null if it 
+  ** hasn't been requested
+  */
+  private void process_bank_reply(Request request, long itemId, 
+      String bankReply, CompletableFuture<String> fetched) {
     if (bankReply.equals(ComsFormat.purchase_success)) {
-      content = get_content(contentMsg);
-      System.out.println(content);
-      if (content.equals("")) {
-        transaction_fail(itemId);
-        return;
+      if (fetched == null) {
+        fetched = get_content(itemId);
       }
-      reply(content);
+      fetched.thenAcceptAsync(content -> {
+        if (ComsFormat.verbose) {
+          System.out.println(content);
+        }
+        if (content.equals("")) {
+          transaction_fail(request, itemId);
+          return;
+        }
+        request.reply(content);
+      }, workers);
     } else if (bankReply.equals(ComsFormat.purchase_fail)) {
-      transaction_fail(itemId);
+      transaction_fail(request, itemId);
     }
   }  
   
-  /* Attempt to retrieve content from Content server for a given item. If the 
-  ** attempt fails return an empty string as the content.
+  /* Attempt to retrieve content from Content server for a given item, or 
+  ** from the content cache if the item has been retrieved recently. If the 
+  ** attempt fails the content is an empty string.
   **
-  ** @param message the message used to request content item
-  ** @return the content, blank if attempt to retive fails
+  ** @param itemId the ID of the item
+  ** @return a future completed with the content, blank if attempt to retrieve
+  ** fails
   */
-  private String get_content(String contentMsg) {
-    String contentReply = "";
-    try {     
-      System.out.println("Message to content: " + contentMsg);
-      contentReply = servers.get_server(ComsFormat.content_hostname).
-          send_message(contentMsg, ComsFormat.retry, 
-          ComsFormat.sendTimeout, ComsFormat.receiveTimeout); 
-      System.out.println("Message from content: " + contentReply);  
-    } catch (IOException e) {
-      return contentReply;
+  private CompletableFuture<String> get_content(long itemId) {
+    String cached = contentCache.get(itemId);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
     }
-    return contentReply;
     
+    Message contentMsg = new Message(ComsFormat.request_content).add(itemId);
+    if (ComsFormat.verbose) {
+      System.out.println("Message to content: " + contentMsg);
+    }
+    return servers.get_server(ComsFormat.content_hostname).send_async(
+        contentMsg, ComsFormat.retry, ComsFormat.sendTimeout, 
+        ComsFormat.receiveTimeout).handle((contentReply, e) -> {
+          if (e != null) {
+            return "";
+          }
+          if (ComsFormat.verbose) {
+            System.out.println("Message from content: " + contentReply);
+          }
+          if (!contentReply.isEmpty()) {
+            contentCache.put(itemId, contentReply);
+          }
+          if (ComsFormat.verbose) {
+            System.out.println(contentCache);
+          }
+          return contentReply;
+        });
   }
   
   /* Send a message indicating that the item buy request has failed. 
   **
+  ** @param request the request to reply to
   ** @param itemId the ID of the item that the buy attempted failed on
   */  
-  private void transaction_fail(long itemId) {
-    reply(itemId + ComsFormat.separator + ComsFormat.transaction_fail);
+  private void transaction_fail(Request request, long itemId) {
+    request.reply(itemId + ComsFormat.separator + ComsFormat.transaction_fail);
   }
   
   /* Checks that the supplied port is a number within the valid port range 
@@ -329,20 +366,272 @@ public class Store {
   }
 }
 
-/* A class used to store the stock information read from the stock file.
+/* A class used to store the stock information read from the stock file. The
+** stock doesn't change once it is loaded, so the reply to a list request is
+** built and encoded once, when the snapshot is written, and then reused for 
+** every list request.
+**
+** Items are held in a pair of primitive arrays of the item IDs and prices
+** sorted by ID, so a price is found by binary search without boxing, each
+** item takes 12 bytes, and the arrays are walked in order to list the stock.
+**
+** The arrays are written to a binary snapshot file kept beside the stock file
+** (the stock file's name with SNAPSHOT_SUFFIX added): a header, the item IDs,
+** the prices and then the length and UTF-8 bytes of the reply to a list 
+** request. Startup loads the snapshot without parsing the stock file when the
+** snapshot matches the stock file's size and modification time, and 
+** otherwise parses the stock file in parallel chunks and writes a new 
+** snapshot. The list reply is sent straight from the mapped snapshot, so it 
+** is neither rebuilt on startup nor held on the heap. Only if the snapshot 
+** can't be written is the reply built on the heap.
 */
 class Stock {
-  //A map of the itemId to the content. Tree map is used to preserve ordering
-  private TreeMap<Long, Float> stockMap;
+  public static final String SNAPSHOT_SUFFIX = ".snap";
+  
+  private static final int HEADER_LENGTH = CatalogFile.HEADER_LENGTH;
+  //Snapshot item: item-ID in the array of IDs, price in the array of prices
+  private static final int ITEM_LENGTH = 12;
+  //Size of the buffer the snapshot is written through
+  private static final int BUFFER_LENGTH = 1 << 16;
   
-  public Stock(List<String> stock) {
-    stockMap = new TreeMap<Long, Float>();
-    for (int i = 0; i < stock.size(); i++) {
-      String stockParts[] = stock.get(i).split(ComsFormat.separator);
-      long itemId = Long.parseLong(stockParts[0]);
-      float itemPrice = Float.parseFloat(stockParts[1]);
-      stockMap.put(itemId, itemPrice);
+  private long[] itemIds; //ID of each item in ascending order
+  private float[] itemPrices; //price of each item in itemIds
+  private Fragments listing; //reply to a list request, ready to send
+  
+  /* The Stock object is created from a stock file, loading the stock from
+  ** the file's snapshot if it has an up to date one and otherwise parsing the
+  ** file and writing a new snapshot.
+  **
+  ** @param file the stock file
+  */
+  public Stock(Path file) throws IOException {
+    Path snapshotFile = Paths.get(file.toString() + SNAPSHOT_SUFFIX);
+    long size = Files.size(file);
+    long modified = Files.getLastModifiedTime(file).toMillis();
+    
+    ByteBuffer snapshot = map_snapshot(snapshotFile, size, modified);
+    if (snapshot != null) {
+      load(snapshot);
+    } else {
+      parse(CatalogFile.map(file));
+      try {
+        write_snapshot(snapshotFile, size, modified);
+        snapshot = map_snapshot(snapshotFile, size, modified);
+      } catch (IOException e) {
+        System.err.print("Could not write stock snapshot: " + e + "\n");
+      }
+    }
+    
+    if (snapshot != null) {
+      int start = HEADER_LENGTH + itemIds.length * ITEM_LENGTH + 8;
+      listing = new Fragments(snapshot.slice(start, 
+          snapshot.limit() - start));
+    } else {
+      listing = new Fragments((ComsFormat.listStart + ComsFormat.newline 
+          + toString() + ComsFormat.newline + ComsFormat.listEnd)
+          .getBytes(StandardCharsets.UTF_8));
+    }
+  }
+  
+  /* Map the snapshot of a stock file, if it is up to date.
+  **
+  ** @param snapshotFile the snapshot file
+  ** @param size the size of the stock file
+  ** @param modified the modification time of the stock file
+  ** @return the mapped snapshot, null if it is missing or out of date
+  */
+  private static ByteBuffer map_snapshot(Path snapshotFile, long size, 
+      long modified) throws IOException {
+    ByteBuffer snapshot = CatalogFile.map_built(snapshotFile, size, modified,
+        ITEM_LENGTH);
+    if (snapshot == null) {
+      return null;
+    }
+    int start = HEADER_LENGTH + snapshot.getInt(16) * ITEM_LENGTH;
+    if (snapshot.limit() < start + 8 
+        || snapshot.getLong(start) != snapshot.limit() - start - 8) {
+      return null;
+    }
+    return snapshot;
+  }
+  
+  /* Load the items from a mapped snapshot.
+  **
+  ** @param snapshot the mapped snapshot
+  */
+  private void load(ByteBuffer snapshot) {
+    int count = snapshot.getInt(16);
+    itemIds = new long[count];
+    itemPrices = new float[count];
+    snapshot.position(HEADER_LENGTH);
+    snapshot.asLongBuffer().get(itemIds);
+    snapshot.position(HEADER_LENGTH + count * 8);
+    snapshot.asFloatBuffer().get(itemPrices);
+    snapshot.clear();
+  }
+  
+  /* Write the items and the reply to a list request to a snapshot file, 
+  ** through a buffer of BUFFER_LENGTH bytes so neither the snapshot nor the
+  ** reply is ever held in memory whole.
+  **
+  ** @param snapshotFile the snapshot file
+  ** @param size the size of the stock file
+  ** @param modified the modification time of the stock file
+  */
+  private void write_snapshot(Path snapshotFile, long size, long modified) 
+      throws IOException {
+    CatalogFile.write(snapshotFile, channel -> {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+      buffer.putLong(size).putLong(modified).putInt(itemIds.length);
+      for (long itemId : itemIds) {
+        if (buffer.remaining() < 8) {
+          drain(channel, buffer);
+        }
+        buffer.putLong(itemId);
+      }
+      for (float price : itemPrices) {
+        if (buffer.remaining() < 4) {
+          drain(channel, buffer);
+        }
+        buffer.putFloat(price);
+      }
+      if (buffer.remaining() < 8) {
+        drain(channel, buffer);
+      }
+      //The length of the reply is filled in once it is known
+      long lengthAt = HEADER_LENGTH + (long) itemIds.length * ITEM_LENGTH;
+      buffer.putLong(0);
+      drain(channel, buffer);
+      
+      long length = 0;
+      StringBuilder text = new StringBuilder(ComsFormat.listStart)
+          .append(ComsFormat.newline);
+      for (int i = 0; i <= itemIds.length; i++) {
+        if (i < itemIds.length) {
+          text.append(itemIds[i]).append(" ").append(itemPrices[i])
+              .append(ComsFormat.newline);
+        } else {
+          text.append(ComsFormat.newline).append(ComsFormat.listEnd);
+        }
+        if (text.length() >= BUFFER_LENGTH || i == itemIds.length) {
+          ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(
+              StandardCharsets.UTF_8));
+          length += bytes.limit();
+          while (bytes.hasRemaining()) {
+            channel.write(bytes);
+          }
+          text.setLength(0);
+        }
+      }
+      buffer.clear();
+      buffer.putLong(length).flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, lengthAt + buffer.position());
+      }
+    });
+  }
+  
+  /* Write the bytes in a buffer to a channel and clear it for more.
+  **
+  ** @param channel the channel to write to
+  ** @param buffer the buffer, holding bytes from its start to its position
+  */
+  private static void drain(FileChannel channel, ByteBuffer buffer) 
+      throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+  
+  /* Parse the items of a mapped stock file in parallel chunks.
+  **
+  ** @param data the mapped stock file
+  */
+  private void parse(ByteBuffer data) {
+    List<Items> chunks = CatalogFile.parse(data, Stock::parse_chunk);
+    int count = 0;
+    for (Items chunk : chunks) {
+      count += chunk.count;
+    }
+    long[] ids = new long[count];
+    float[] prices = new float[count];
+    int next = 0;
+    for (Items chunk : chunks) {
+      System.arraycopy(chunk.ids, 0, ids, next, chunk.count);
+      System.arraycopy(chunk.prices, 0, prices, next, chunk.count);
+      next += chunk.count;
+    }
+    
+    boolean sorted = true;
+    for (int i = 1; i < count && sorted; i++) {
+      sorted = ids[i] > ids[i - 1];
+    }
+    if (sorted) {
+      itemIds = ids;
+      itemPrices = prices;
+    } else {
+      sort(ids, prices);
+    }
+  }
+  
+  /* Parse a chunk of the stock file.
+  **
+  ** @param chunk the lines to parse
+  ** @return the item-ID and price of each line that isn't blank
+  */
+  private static Items parse_chunk(CatalogFile.Chunk chunk) {
+    Items items = new Items();
+    while (chunk.next_line()) {
+      if (items.count == items.ids.length) {
+        items.ids = Arrays.copyOf(items.ids, items.count * 2);
+        items.prices = Arrays.copyOf(items.prices, items.count * 2);
+      }
+      items.ids[items.count] = chunk.take_id();
+      items.prices[items.count] = Float.parseFloat(chunk.rest());
+      items.count++;
+    }
+    return items;
+  }
+  
+  /* Store the items of a stock file that isn't in item-ID order sorted by
+  ** ID. If an item-ID appears more than once the last line is used.
+  **
+  ** @param ids the ID of each item in file order
+  ** @param prices the price of each item in file order
+  */
+  private void sort(long[] ids, float[] prices) {
+    int[] lines = new int[ids.length]; //line each item was read from
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = i;
     }
+    //Ties on item-ID are sorted by line so the last line comes last
+    CatalogFile.sort(ids.length, (i, j) -> {
+      int compare = Long.compare(ids[i], ids[j]);
+      return compare != 0 ? compare : Integer.compare(lines[i], lines[j]);
+    }, (i, j) -> {
+      long id = ids[i];
+      ids[i] = ids[j];
+      ids[j] = id;
+      float price = prices[i];
+      prices[i] = prices[j];
+      prices[j] = price;
+      int line = lines[i];
+      lines[i] = lines[j];
+      lines[j] = line;
+    });
+    
+    int count = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (i + 1 == ids.length || ids[i + 1] != ids[i]) {
+        ids[count] = ids[i];
+        prices[count] = prices[i];
+        count++;
+      }
+    }
+    itemIds = Arrays.copyOf(ids, count);
+    itemPrices = Arrays.copyOf(prices, count);
   }
   
   /* Return the price of the given stock item.
@@ -352,7 +641,64 @@ class Stock {
   */ 
   public float get_price (long itemId) {
     float noItem = -1;
-    return stockMap.getOrDefault(itemId, noItem);
+    int i = Arrays.binarySearch(itemIds, itemId);
+    return i < 0 ? noItem : itemPrices[i];
+  }
+  
+  /* Return the reply to a list request, encoded and split into the 
+  ** fragments it is sent as.
+  **
+  ** @return the list of the entire stock between the list start and end
+  */
+  public Fragments get_listing() {
+    return this.listing;
+  }
+  
+  /* Return the reply to a list request for a page of the stock starting at
+  ** the given position in the list.
+  **
+  ** @param offset the position in the list of the first item
+  ** @param count the most items to list
+  ** @return the list of the items between the list start and end
+  */
+  public String get_page_at(long offset, long count) {
+    return get_page((int) Math.max(0, Math.min(offset, itemIds.length)), 
+        count);
+  }
+  
+  /* Return the reply to a list request for a page of the stock starting at
+  ** the first item whose ID is no less than the given one.
+  **
+  ** @param itemId the smallest ID to list
+  ** @param count the most items to list
+  ** @return the list of the items between the list start and end
+  */
+  public String get_page_from(long itemId, long count) {
+    int start = Arrays.binarySearch(itemIds, itemId);
+    if (start < 0) {
+      start = -start - 1;
+    }
+    return get_page(start, count);
+  }
+  
+  /* Return the reply to a list request for the items from the given index 
+  ** in the sorted arrays.
+  **
+  ** @param start the index of the first item
+  ** @param count the most items to list
+  ** @return the list of the items between the list start and end
+  */
+  private String get_page(int start, long count) {
+    int end = start + (int) Math.max(0, Math.min(count, 
+        itemIds.length - start));
+    StringBuilder page = new StringBuilder(ComsFormat.listStart);
+    page.append(ComsFormat.newline);
+    for (int i = start; i < end; i++) {
+      page.append(itemIds[i]).append(" ").append(itemPrices[i])
+          .append(ComsFormat.newline);
+    }
+    return page.append(ComsFormat.newline).append(ComsFormat.listEnd)
+        .toString();
   }
   
   /* Return the string representation of the entire stock.
@@ -360,16 +706,19 @@ class Stock {
   ** @return the string representation of the entire stock.
   */  
   public String toString () {
-    String string = "";
-    for (Long itemId: stockMap.keySet()) {
-      string = string + itemId + " " + stockMap.get(itemId) 
-	      + ComsFormat.newline;
+    StringBuilder string = new StringBuilder();
+    for (int i = 0; i < itemIds.length; i++) {
+      string.append(itemIds[i]).append(" ").append(itemPrices[i])
+          .append(ComsFormat.newline);
     }
-    return string;
+    return string.toString();
+  }
+  
+  /* The items parsed from one chunk of the stock file, in file order.
+  */
+  private static class Items {
+    private long[] ids = new long[1024];
+    private float[] prices = new float[1024];
+    private int count = 0;
   }
 }
-
-
-
-
-
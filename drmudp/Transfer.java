@@ -0,0 +1,294 @@
+package drmudp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/* The sending side of a reply that is sent as fragments. A sliding window
+** limits the number of fragments that have been sent but not acknowledged to
+** ComsFormat.window. The receiver acknowledges fragments with ACK messages
+** holding the number of fragments received in order and the numbers of any
+** fragments received after a gap (selective acknowledgements). A fragment is
+** resent (selective repeat) once a fragment sent ComsFormat.dupThreshold sends
+** after it has been acknowledged, or when the receiver asks for it with a
+** RESEND message.
+*/
+class Transfer {
+  private String tag; //request ID tag of the reply
+  private byte[] header; //start of each fragment's header, tag and keyword
+  private Fragments fragments; //the reply split into fragments
+  private int count; //number of fragments in the reply
+  private long created; //time in ms the transfer started
+
+  private boolean[] acked; //which fragments have been acknowledged
+  private long[] sendNumber; //send number of the last send of each fragment
+  private long sends = 0; //number of fragment sends made so far
+  private int base = 0; //first fragment that has not been acknowledged
+  private int next = 0; //first fragment that has not yet been sent
+  private int inFlight = 0; //fragments sent but not acknowledged
+  private int remaining; //fragments not yet acknowledged
+
+  /* Create a new transfer of a reply.
+  **
+  ** @param tag the request ID tag of the reply
+  ** @param fragments the reply split into fragments
+  */
+  public Transfer(String tag, Fragments fragments) {
+    this.tag = tag;
+    this.fragments = fragments;
+    header = (tag + ComsFormat.fragment + ComsFormat.separator)
+        .getBytes(StandardCharsets.UTF_8);
+    count = fragments.get_count();
+    remaining = count;
+    acked = new boolean[count];
+    sendNumber = new long[count];
+    created = System.currentTimeMillis();
+  }
+
+  /* Return the fragments to send to start the transfer, as many as fit in the
+  ** window.
+  **
+  ** @return the numbers of the fragments to send
+  */
+  public synchronized List<Integer> start() {
+    List<Integer> toSend = new ArrayList<Integer>();
+    fill_window(toSend);
+    return toSend;
+  }
+
+  /* Restart a transfer whose state was lost by treating every fragment as
+  ** sent, so that only the fragments the receiver asks for are sent again.
+  */
+  public synchronized void restart() {
+    for (int i = next; i < count; i++) {
+      sendNumber[i] = sends++;
+    }
+    next = count;
+    inFlight = 0;
+  }
+
+  /* Process an ACK message from the receiver and return the fragments to send
+  ** in response: fragments judged lost and new fragments the window now has
+  ** room for.
+  **
+  ** @param ack the words of the ACK message, the opcode, the number of
+  ** fragments received in order and then the selectively acknowledged
+  ** fragments
+  ** @return the numbers of the fragments to send
+  */
+  public synchronized List<Integer> ack(String[] ack) {
+    List<Integer> toSend = new ArrayList<Integer>();
+    long latest = -1; //send number of the latest fragment acknowledged
+
+    if (ack.length > 1) {
+      int received = parse(ack[1]);
+      for (int i = base; i < received && i < count; i++) {
+        latest = Math.max(latest, mark_acked(i));
+      }
+    }
+    for (int j = 2; j < ack.length; j++) {
+      int i = parse(ack[j]);
+      if (i >= 0 && i < count) {
+        latest = Math.max(latest, mark_acked(i));
+      }
+    }
+
+    while (base < count && acked[base]) {
+      base++;
+    }
+
+    //Fragments sent well before one that has arrived are taken to be lost
+    for (int i = base; i < next; i++) {
+      if (!acked[i] && sendNumber[i] <= latest - ComsFormat.dupThreshold) {
+        sendNumber[i] = sends++;
+        toSend.add(i);
+      }
+    }
+    fill_window(toSend);
+    return toSend;
+  }
+
+  /* Process a RESEND message from the receiver and return the fragments to
+  ** send in response, which are the requested fragments that have already
+  ** been sent followed by new fragments up to the size of the window.
+  **
+  ** @param resend the words of the RESEND message, the opcode and then the
+  ** numbers of the missing fragments
+  ** @return the numbers of the fragments to send
+  */
+  public synchronized List<Integer> resend(String[] resend) {
+    List<Integer> toSend = new ArrayList<Integer>();
+    for (int j = 1; j < resend.length && toSend.size() < ComsFormat.window;
+        j++) {
+      int i = parse(resend[j]);
+      if (i >= 0 && i < next && !acked[i]) {
+        sendNumber[i] = sends++;
+        toSend.add(i);
+      }
+    }
+    //The receiver is waiting, so count nothing as in flight but the resends
+    inFlight = toSend.size();
+    fill_window(toSend);
+    return toSend;
+  }
+
+  /* Add new fragments to send until the window is full or every fragment has
+  ** been sent.
+  **
+  ** @param toSend the list of fragments to send to add to
+  */
+  private void fill_window(List<Integer> toSend) {
+    while (inFlight < ComsFormat.window && next < count) {
+      sendNumber[next] = sends++;
+      toSend.add(next);
+      next++;
+      inFlight++;
+    }
+  }
+
+  /* Mark a fragment as acknowledged.
+  **
+  ** @param i the number of the fragment
+  ** @return the send number of the fragment, -1 if it was already acknowledged
+  */
+  private long mark_acked(int i) {
+    if (acked[i] || i >= next) {
+      return -1;
+    }
+    acked[i] = true;
+    remaining--;
+    inFlight = Math.max(0, inFlight - 1);
+    return sendNumber[i];
+  }
+
+  /* Parse a fragment number from a message.
+  **
+  ** @param word the word of the message to parse
+  ** @return the fragment number, -1 if the word is not a number
+  */
+  private int parse(String word) {
+    try {
+      return Integer.parseInt(word);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /* Return whether every fragment of the reply has been acknowledged.
+  **
+  ** @return true if the transfer is complete
+  */
+  public synchronized boolean is_done() {
+    return remaining == 0;
+  }
+
+  /* Return the time the transfer started.
+  **
+  ** @return the time in ms the transfer started
+  */
+  public long get_created() {
+    return this.created;
+  }
+
+  /* Return the request ID tag of the reply.
+  **
+  ** @return the request ID tag
+  */
+  public String get_tag() {
+    return this.tag;
+  }
+
+  /* Return the start of the header of every fragment, the request ID tag
+  ** and the fragment keyword, encoded in UTF-8.
+  **
+  ** @return the bytes of the start of the header
+  */
+  public byte[] get_header() {
+    return this.header;
+  }
+
+  /* Return the reply split into fragments.
+  **
+  ** @return the fragments of the reply
+  */
+  public Fragments get_fragments() {
+    return this.fragments;
+  }
+
+  /* Return the number of fragments in the reply.
+  **
+  ** @return the number of fragments
+  */
+  public int get_count() {
+    return this.count;
+  }
+}
+
+/* A reply split into the fragments a Transfer sends it as. Each fragment is a
+** read-only slice of the reply made once, so a reply built once and sent to
+** many requests, such as the listing of the stock, is split once and its
+** bytes are only copied into the datagrams that send them. The slices are
+** read with absolute gets so any number of transfers can send them at once.
+*/
+class Fragments {
+  private ByteBuffer payload; //the whole reply
+  private ByteBuffer[] parts; //the bytes of each fragment
+
+  /* Split a reply into fragments of ComsFormat.mtu less 
+  ** ComsFormat.fragmentHeader bytes.
+  **
+  ** @param payload the reply encoded in UTF-8, from its position to its limit
+  */
+  public Fragments(ByteBuffer payload) {
+    this.payload = payload.slice().asReadOnlyBuffer();
+    int length = this.payload.limit();
+    int size = ComsFormat.mtu - ComsFormat.fragmentHeader;
+    parts = new ByteBuffer[Math.max(1, (length + size - 1) / size)];
+    for (int i = 0; i < parts.length; i++) {
+      int offset = i * size;
+      parts[i] = this.payload.slice(offset, Math.min(size, length - offset));
+    }
+  }
+
+  /* Split a reply into fragments.
+  **
+  ** @param payload the reply encoded in UTF-8
+  */
+  public Fragments(byte[] payload) {
+    this(ByteBuffer.wrap(payload));
+  }
+
+  /* Return the whole reply.
+  **
+  ** @return the bytes of the reply, not to be moved or changed
+  */
+  public ByteBuffer get_payload() {
+    return this.payload;
+  }
+
+  /* Return the length of the whole reply.
+  **
+  ** @return the length in bytes
+  */
+  public int get_length() {
+    return this.payload.limit();
+  }
+
+  /* Return the number of fragments.
+  **
+  ** @return the number of fragments
+  */
+  public int get_count() {
+    return this.parts.length;
+  }
+
+  /* Return the bytes of a fragment.
+  **
+  ** @param i the number of the fragment
+  ** @return the bytes of the fragment, not to be moved or changed
+  */
+  public ByteBuffer get(int i) {
+    return this.parts[i];
+  }
+}
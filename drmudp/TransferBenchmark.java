@@ -0,0 +1,148 @@
+package drmudp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/* Measures the throughput of replies sent as a Transfer over loopback at
+** several packet loss rates. An EventLoop replies to each content request
+** with a reply of a fixed size, which is fetched by a Server through a relay
+** that drops each datagram passing through it, in either direction, with the
+** loss rate being measured. Each transfer is timed from the relay passing on
+** the request until the Server has the whole reply, so the Server's own
+** simulated loss of the first send (ComsFormat.packetLossProb) isn't counted.
+**
+** The benchmark takes two optional arguments: the size of the reply in MB, 8
+** if it isn't given, and a comma separated list of loss rates in percent,
+** 0,1,2,5,10 if it isn't given. For example:
+**
+**   java drmudp.TransferBenchmark 16 0,5,20
+**
+** Each rate is measured RUNS times, after one unmeasured transfer, and the
+** MB/s of each run is printed.
+*/
+class TransferBenchmark {
+  private static final int RUNS = 3;
+  private static final int RETRY = 50; //attempts before a transfer gives up
+
+  /* Run the benchmark.
+  **
+  ** @param args the reply size in MB and the loss rates in percent
+  */
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    String[] rates = (args.length > 1 ? args[1] : "0,1,2,5,10").split(
+        ComsFormat.portListSeparator);
+
+    char[] text = new char[size << 20];
+    Arrays.fill(text, 'x');
+    String reply = new String(text);
+
+    EventLoop loop = new EventLoop(0);
+    loop.add_handler(ComsFormat.request_content,
+        request -> request.reply(reply));
+    Thread server = new Thread(() -> loop.run(), "Benchmark server");
+    server.setDaemon(true);
+    server.start();
+
+    Relay relay = new Relay(new InetSocketAddress("localhost",
+        loop.get_port()));
+    Server client = new Server(ComsFormat.content_hostname, "localhost",
+        relay.get_port());
+    //One unmeasured transfer so the code being measured has been compiled
+    client.send_message(new Message(ComsFormat.request_content).add(1L),
+        RETRY, ComsFormat.sendTimeout, ComsFormat.receiveTimeout);
+
+    for (String rate : rates) {
+      relay.lossRate = Double.parseDouble(rate) / 100;
+      double[] speeds = new double[RUNS];
+      for (int i = 0; i < RUNS; i++) {
+        relay.started = 0;
+        String received = client.send_message(
+            new Message(ComsFormat.request_content).add(1L), RETRY,
+            ComsFormat.sendTimeout, ComsFormat.receiveTimeout);
+        long time = System.nanoTime() - relay.started;
+        if (received.length() != reply.length()) {
+          throw new IOException("Reply of " + received.length()
+              + " bytes received, " + reply.length() + " sent");
+        }
+        speeds[i] = size / (time / 1e9);
+      }
+      System.out.printf("loss %5.1f%%: %s MB/s%n", relay.lossRate * 100,
+          Arrays.toString(Arrays.stream(speeds)
+          .mapToObj(speed -> String.format("%.1f", speed))
+          .toArray()));
+    }
+    client.close();
+  }
+
+  /* A relay between one client and a server that drops datagrams at random.
+  ** Datagrams from the client are passed on to the server from the relay's
+  ** own channel, and the server's replies are passed back to the last client
+  ** heard from.
+  */
+  private static class Relay {
+    private DatagramChannel front; //channel the client sends to
+    private DatagramChannel back; //channel the server is sent to from
+    private InetSocketAddress server; //address of the server
+    private volatile SocketAddress client = null; //address of the client
+    private volatile double lossRate = 0; //chance of dropping a datagram
+    private volatile long started = 0; //time the first request was passed on
+
+    private Relay(InetSocketAddress server) throws IOException {
+      this.server = server;
+      front = DatagramChannel.open().bind(new InetSocketAddress(0));
+      back = DatagramChannel.open().bind(new InetSocketAddress(0));
+
+      Thread toServer = new Thread(() -> forward(true), "Relay to server");
+      toServer.setDaemon(true);
+      toServer.start();
+      Thread toClient = new Thread(() -> forward(false), "Relay to client");
+      toClient.setDaemon(true);
+      toClient.start();
+    }
+
+    /* Pass datagrams on in one direction until the relay is closed.
+    **
+    ** @param toServer true to pass on datagrams from the client, false to
+    ** pass on datagrams from the server
+    */
+    private void forward(boolean toServer) {
+      ByteBuffer datagram = ByteBuffer.allocateDirect(ComsFormat.mtu);
+      Random random = new Random(toServer ? 1 : 2);
+      DatagramChannel from = toServer ? front : back;
+      DatagramChannel to = toServer ? back : front;
+      while (true) {
+        datagram.clear();
+        try {
+          SocketAddress sender = from.receive(datagram);
+          if (toServer) {
+            client = sender;
+          }
+          if (random.nextDouble() < lossRate) {
+            continue;
+          }
+          datagram.flip();
+          if (toServer && started == 0) {
+            started = System.nanoTime();
+          }
+          to.send(datagram, toServer ? server : client);
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }
+
+    /* Return the port the client is to send to.
+    **
+    ** @return the port
+    */
+    private int get_port() throws IOException {
+      return ((InetSocketAddress) front.getLocalAddress()).getPort();
+    }
+  }
+}
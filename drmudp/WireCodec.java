@@ -0,0 +1,218 @@
+package drmudp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* The binary wire format. Every binary message starts with a fixed header:
+**
+**   magic (1 byte) version (1 byte) opcode (1 byte) flags (1 byte)
+**   request ID (8 bytes) body length (2 bytes)
+**
+** followed by a body of typed fields, each a type byte and then the value: a
+** long (8 bytes), a float (4 bytes), an int (4 bytes) or a string (a 2 byte
+** length and then the UTF-8 bytes).
+**
+** The magic byte can't start a text message, so a server tells the two
+** formats apart by the first byte and replies in the format it was sent.
+** Fragmented replies and their ACK and RESEND messages always use the text
+** format.
+*/
+class WireCodec {
+  public static final byte MAGIC = (byte) 0xD7;
+  public static final byte VERSION = 1;
+  public static final int HEADER_LENGTH = 14;
+
+  //Flags
+  public static final byte FLAG_REPLY = 1;
+
+  //Field types
+  public static final byte LONG = 1;
+  public static final byte FLOAT = 2;
+  public static final byte INT = 3;
+  public static final byte STRING = 4;
+
+  //Code of the reply opcode
+  public static final byte REPLY_OPCODE = 7;
+
+  //Most fields a message can hold
+  public static final int MAX_FIELDS = 64;
+
+  //Opcodes, the index of each opcode is its code on the wire
+  private static final String[] OPCODES = {"", ComsFormat.registration,
+      ComsFormat.lookup, ComsFormat.listRequest, ComsFormat.buyRequest,
+      ComsFormat.request_content, ComsFormat.authorise, ComsFormat.reply,
+      ComsFormat.multiLookup, ComsFormat.authoriseBatch};
+
+  /* Return the wire code of an opcode.
+  **
+  ** @param opcode the opcode
+  ** @return the code of the opcode, 0 if it has none
+  */
+  public static byte encode_opcode(String opcode) {
+    for (int i = 1; i < OPCODES.length; i++) {
+      if (OPCODES[i].equals(opcode)) {
+        return (byte) i;
+      }
+    }
+    return 0;
+  }
+
+  /* Return the opcode with the given wire code.
+  **
+  ** @param code the code of the opcode
+  ** @return the opcode, an empty string if the code is unknown
+  */
+  public static String decode_opcode(byte code) {
+    if (code < 1 || code >= OPCODES.length) {
+      return "";
+    }
+    return OPCODES[code];
+  }
+
+  /* Return whether a datagram is a binary message.
+  **
+  ** @param datagram the datagram, positioned at its start
+  ** @return true if the datagram starts with the binary header
+  */
+  public static boolean is_binary(ByteBuffer datagram) {
+    return datagram.remaining() >= HEADER_LENGTH
+        && datagram.get(datagram.position()) == MAGIC
+        && datagram.get(datagram.position() + 1) == VERSION;
+  }
+
+  /* Write a binary header. The body length is left as zero and is filled in
+  ** by end_message once the fields have been written.
+  **
+  ** @param buffer the buffer to write to
+  ** @param opcode the code of the opcode
+  ** @param flags the message flags
+  ** @param requestId the ID of the request
+  */
+  public static void start_message(ByteBuffer buffer, byte opcode, byte flags,
+      long requestId) {
+    buffer.put(MAGIC).put(VERSION).put(opcode).put(flags).putLong(requestId)
+        .putShort((short) 0);
+  }
+
+  /* Fill in the body length of a message started at the given position.
+  **
+  ** @param buffer the buffer holding the message
+  ** @param start the position the message starts at
+  */
+  public static void end_message(ByteBuffer buffer, int start) {
+    buffer.putShort(start + HEADER_LENGTH - 2,
+        (short) (buffer.position() - start - HEADER_LENGTH));
+  }
+
+  /* Write a string field. ASCII strings are written a char at a time so no
+  ** byte array is allocated.
+  **
+  ** @param buffer the buffer to write to
+  ** @param value the string to write
+  ** @return false if the string didn't fit in the buffer and wasn't written
+  */
+  public static boolean put_string(ByteBuffer buffer, String value) {
+    int start = buffer.position();
+    if (buffer.remaining() < 3 + value.length()) {
+      return false;
+    }
+    buffer.put(STRING).putShort((short) 0);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        buffer.position(start);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < 3 + bytes.length) {
+          return false;
+        }
+        buffer.put(STRING).putShort((short) bytes.length).put(bytes);
+        return true;
+      }
+      buffer.put((byte) c);
+    }
+    buffer.putShort(start + 1, (short) value.length());
+    return true;
+  }
+
+  /* Return a hash of some bytes, used to find a string field in a table
+  ** without making a String of it.
+  **
+  ** @param buffer the buffer holding the bytes
+  ** @param offset the position of the first byte
+  ** @param length the number of bytes
+  ** @return the hash
+  */
+  public static int hash(ByteBuffer buffer, int offset, int length) {
+    int hash = 1;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + buffer.get(offset + i);
+    }
+    return hash;
+  }
+
+  /* Read the header and find the fields of a binary message. The position
+  ** of each field's value and its type are stored in the given arrays.
+  **
+  ** @param datagram the datagram, positioned at its start
+  ** @param offsets the array to store the position of each field's value in
+  ** @param types the array to store the type of each field in
+  ** @return the number of fields, -1 if the message is malformed
+  */
+  public static int decode_fields(ByteBuffer datagram, int[] offsets,
+      byte[] types) {
+    int start = datagram.position();
+    int length = datagram.getShort(start + HEADER_LENGTH - 2) & 0xFFFF;
+    int end = start + HEADER_LENGTH + length;
+    if (end > datagram.limit()) {
+      return -1;
+    }
+
+    int position = start + HEADER_LENGTH;
+    int count = 0;
+    while (position < end) {
+      if (count == MAX_FIELDS) {
+        return -1;
+      }
+      byte type = datagram.get(position);
+      types[count] = type;
+      offsets[count] = position + 1;
+      switch (type) {
+        case LONG:
+          position += 9;
+          break;
+        case FLOAT:
+        case INT:
+          position += 5;
+          break;
+        case STRING:
+          if (position + 3 > end) {
+            return -1;
+          }
+          position += 3 + (datagram.getShort(position + 1) & 0xFFFF);
+          break;
+        default:
+          return -1;
+      }
+      count++;
+    }
+    return position == end ? count : -1;
+  }
+
+  /* Return the opcode code of a binary message.
+  **
+  ** @param datagram the datagram, positioned at its start
+  ** @return the code of the opcode
+  */
+  public static byte get_opcode(ByteBuffer datagram) {
+    return datagram.get(datagram.position() + 2);
+  }
+
+  /* Return the request ID of a binary message.
+  **
+  ** @param datagram the datagram, positioned at its start
+  ** @return the request ID
+  */
+  public static long get_requestId(ByteBuffer datagram) {
+    return datagram.getLong(datagram.position() + 4);
+  }
+}